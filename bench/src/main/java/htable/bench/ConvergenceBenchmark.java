@@ -0,0 +1,177 @@
+package htable.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+import htable.NNHashTable;
+import htable.metrics.TableMetrics;
+import htable.network.DenseNetwork;
+import htable.util.Matrix;
+
+// Convergence benchmark over generated key corpora.
+// 
+// For every corpus, table size and hyperparameter set a table is filled
+// one put at a time, as an application would, and the run is repeated
+// with different network seeds. Each run reports:
+// 
+//   steps     total training steps over all puts
+//   last      steps the final put needed to reach 100% accuracy, for
+//             failed runs the last put that converged
+//   time      total training time in milliseconds
+//   failed    whether a put failed to converge within maxSteps
+//   peak      peak heap usage in bytes during the run
+// 
+// and each configuration ends with a summary line with the failure
+// rate and means over the successful runs. Results are printed as CSV.
+// 
+// usage: ConvergenceBenchmark [sizes] [repeats] [corpora]
+//   sizes    comma separated table sizes, default 8,16,32
+//   repeats  runs per configuration, default 3
+//   corpora  comma separated corpus names, default all
+// 
+public class ConvergenceBenchmark {
+	
+	// hyperparameter sets as {maxSteps, bufferSteps, eta}
+	private static final double[][] HYPERPARAMETERS = {
+		{10_000, 0, 1.0},
+		{10_000, 0, 2.0},
+		{10_000, 10, 0.5},
+	};
+	
+	private static final long CORPUS_SEED = 1234L;
+	private static final long NETWORK_SEED = 987432598273L;
+	
+	public static void main(String[] args) {
+		int[] sizes = (args.length > 0) ? parseInts(args[0]) : new int[] {8, 16, 32};
+		int repeats = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+		Corpus[] corpora = (args.length > 2) ? parseCorpora(args[2]) : Corpus.values();
+		
+		DenseNetwork.setLogging(false);
+		System.out.println("corpus,size,maxSteps,bufferSteps,eta,run,steps,last,time_ms,failed,peak_bytes");
+		
+		for (Corpus corpus : corpora) {
+			for (int size : sizes) {
+				String[] keys = corpus.keys(size, CORPUS_SEED);
+				for (double[] hp : HYPERPARAMETERS) {
+					
+					// repeat with different network initialisations
+					List<Run> runs = new ArrayList<>();
+					for (int r=0; r < repeats; r++) {
+						Matrix.randomSeed(NETWORK_SEED + r);
+						Run run = run(corpus, keys, (int)hp[0], (int)hp[1], hp[2]);
+						runs.add(run);
+						System.out.println(corpus+","+size+","+(int)hp[0]+","+(int)hp[1]+","+hp[2]+","+r+","
+								+run.steps+","+run.last+","+run.millis+","+run.failed+","+run.peak);
+					}
+					System.out.println(summary(corpus, size, hp, runs));
+				}
+			}
+		}
+	}
+	
+	
+	// fill a table with keys one put at a time
+	private static Run run(Corpus corpus, String[] keys, int maxSteps, int bufferSteps, double eta) {
+		NNHashTable table = new NNHashTable(corpus.keyLimit, keys.length, maxSteps, bufferSteps, eta);
+		TableMetrics metrics = table.enableMetrics();
+		
+		System.gc();
+		resetPeakHeap();
+		
+		Run run = new Run();
+		long previous = 0;
+		for (int i=0; i < keys.length; i++) {
+			try {
+				table.put(keys[i], i);
+			} catch (IllegalStateException e) {
+				run.failed = true;
+				break;
+			}
+			
+			// steps of this put, from the running total
+			long total = metrics.getTrainingStepsTotal();
+			run.last = total - previous;
+			previous = total;
+		}
+		
+		// collect results
+		TableMetrics.Snapshot snapshot = metrics.snapshot();
+		run.steps = snapshot.trainingSteps().sum();
+		run.millis = Math.round(snapshot.latency(TableMetrics.UPDATE).sum() / 1e6);
+		run.peak = peakHeap();
+		return run;
+	}
+	
+	
+	// summary line over all runs of a configuration
+	private static String summary(Corpus corpus, int size, double[] hp, List<Run> runs) {
+		int failures = 0;
+		double steps = 0, millis = 0, peak = 0;
+		for (Run run : runs) {
+			peak = Math.max(peak, run.peak);
+			if (run.failed) {
+				failures++;
+			} else {
+				steps += run.steps;
+				millis += run.millis;
+			}
+		}
+		int successes = runs.size() - failures;
+		return "# "+corpus+" size="+size+" maxSteps="+(int)hp[0]+" bufferSteps="+(int)hp[1]+" eta="+hp[2]
+				+" failure_rate="+(failures / (double)runs.size())
+				+" mean_steps="+((successes == 0) ? "n/a" : Math.round(steps / successes))
+				+" mean_time_ms="+((successes == 0) ? "n/a" : Math.round(millis / successes))
+				+" peak_bytes="+(long)peak;
+	}
+	
+	
+	// reset the peak usage of all heap memory pools
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+		}
+	}
+	
+	
+	// sum of peak usage of all heap memory pools since the last reset
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+	
+	
+	private static int[] parseInts(String csv) {
+		String[] parts = csv.split(",");
+		int[] values = new int[parts.length];
+		for (int i=0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		return values;
+	}
+	
+	
+	private static Corpus[] parseCorpora(String csv) {
+		String[] parts = csv.split(",");
+		Corpus[] corpora = new Corpus[parts.length];
+		for (int i=0; i < parts.length; i++) {
+			corpora[i] = Corpus.valueOf(parts[i].trim().toUpperCase());
+		}
+		return corpora;
+	}
+	
+	
+	// results of a single run
+	private static class Run {
+		long steps;
+		long last;
+		long millis;
+		boolean failed;
+		long peak;
+	}
+}
@@ -0,0 +1,103 @@
+package htable.bench;
+
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+// Generated key corpora for the convergence benchmark.
+// 
+// Every corpus is deterministic for a given seed and returns distinct
+// keys, so runs can be repeated and compared between releases.
+// 
+public enum Corpus {
+	
+	// random version 4 style UUIDs, 36 characters
+	UUIDS(36) {
+		String key(Random random, int i) {
+			return new UUID(random.nextLong(), random.nextLong()).toString();
+		}
+	},
+	
+	// URLs sharing a host and a small set of path prefixes
+	URLS(48) {
+		String key(Random random, int i) {
+			String prefix = URL_PREFIXES[random.nextInt(URL_PREFIXES.length)];
+			return prefix + Integer.toString(random.nextInt(1_000_000), 36);
+		}
+	},
+	
+	// sequential numeric identifiers from a random base
+	SEQUENTIAL(12) {
+		String key(Random random, int i) {
+			return Long.toString(SEQUENTIAL_BASE + i);
+		}
+	},
+	
+	// English words, then pairs of words
+	WORDS(16) {
+		String key(Random random, int i) {
+			if (i < WORD_LIST.length) return WORD_LIST[i];
+			return WORD_LIST[random.nextInt(WORD_LIST.length)] + WORD_LIST[random.nextInt(WORD_LIST.length)];
+		}
+	},
+	
+	// keys that differ from a common stem by one or two characters
+	NEAR_DUPLICATES(16) {
+		String key(Random random, int i) {
+			char[] key = "customer-000000".toCharArray();
+			int edits = 1 + random.nextInt(2);
+			for (int e=0; e < edits; e++) {
+				key[random.nextInt(key.length)] = (char)('0' + random.nextInt(10));
+			}
+			return new String(key);
+		}
+	};
+	
+	private static final long SEQUENTIAL_BASE = 100_000_000L;
+	
+	private static final String[] URL_PREFIXES = {
+		"https://example.com/api/v1/users/",
+		"https://example.com/api/v1/orders/",
+		"https://example.com/api/v2/users/",
+		"https://example.com/static/img/",
+	};
+	
+	private static final String[] WORD_LIST = {
+		"apple", "bridge", "candle", "dragon", "engine", "forest", "garden", "harbor",
+		"island", "jacket", "kettle", "ladder", "marble", "needle", "orange", "pencil",
+		"quartz", "rabbit", "saddle", "tunnel", "umbrella", "valley", "window", "yellow",
+		"zipper", "anchor", "basket", "castle", "desert", "feather", "glacier", "hammer",
+		"insect", "jungle", "kitten", "lantern", "meadow", "nickel", "oyster", "pillow",
+		"quiver", "rocket", "silver", "timber", "uncle", "violin", "walnut", "yogurt",
+		"zebra", "almond", "button", "cactus", "dolphin", "emerald", "falcon", "ginger",
+		"hollow", "igloo", "jigsaw", "kernel", "lemon", "magnet", "napkin", "olive",
+		"parrot", "quill", "ribbon", "sponge", "turtle", "unicorn", "velvet", "wizard",
+		"yarn", "zenith", "amber", "bottle", "cobalt", "donkey", "eclipse", "fabric",
+		"goblet", "helmet", "ivory", "jester", "koala", "lizard", "mirror", "nectar",
+		"orbit", "puzzle", "quest", "raven", "saturn", "thistle", "utensil", "vortex",
+		"whistle", "yonder", "zinc", "arrow", "beacon", "cinder", "dagger", "ember",
+	};
+	
+	// maximum key length produced by this corpus
+	public final int keyLimit;
+	
+	Corpus(int keyLimit) {
+		this.keyLimit = keyLimit;
+	}
+	
+	
+	// generate the i-th candidate key
+	abstract String key(Random random, int i);
+	
+	
+	// generate count distinct keys from seed
+	public String[] keys(int count, long seed) {
+		Random random = new Random(seed);
+		Set<String> keys = new LinkedHashSet<>();
+		for (int i=0; keys.size() < count; i++) {
+			keys.add(this.key(random, i));
+		}
+		return keys.toArray(new String[0]);
+	}
+}
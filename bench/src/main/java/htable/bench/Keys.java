@@ -0,0 +1,38 @@
+package htable.bench;
+
+import java.util.Random;
+
+// Deterministic key sets shared by the benchmarks
+// 
+final class Keys {
+	
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+	
+	// distinct random alphanumeric keys with lengths in [1, keyLimit]
+	static String[] random(int count, int keyLimit, long seed) {
+		Random random = new Random(seed);
+		String[] keys = new String[count];
+		for (int i=0; i < count; i++) {
+			String key;
+			do {
+				int length = 1 + random.nextInt(keyLimit);
+				StringBuilder sb = new StringBuilder(length);
+				for (int j=0; j < length; j++) {
+					sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+				}
+				key = sb.toString();
+			} while (contains(keys, i, key));
+			keys[i] = key;
+		}
+		return keys;
+	}
+	
+	
+	// check if key is in the first n keys
+	private static boolean contains(String[] keys, int n, String key) {
+		for (int i=0; i < n; i++) {
+			if (keys[i].equals(key)) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,98 @@
+package htable.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import htable.network.Activations;
+import htable.util.Matrix;
+
+// Matrix products and element-wise operations across shapes.
+// 
+// height x width is the shape of the left operand, dot products are
+// taken with a width x 1 column vector, as in DenseNetwork.predict,
+// and with a width x width square matrix.
+// 
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatrixBenchmark {
+	
+	@Param({"16", "64", "256"})
+	public int height;
+	
+	@Param({"16", "64", "256"})
+	public int width;
+	
+	private Matrix a;
+	private Matrix b;
+	private Matrix square;
+	private Matrix column;
+	
+	@Setup
+	public void setup() {
+		Matrix.randomSeed(42L);
+		this.a = Matrix.random(this.height, this.width);
+		this.b = Matrix.random(this.height, this.width);
+		this.square = Matrix.random(this.width, this.width);
+		this.column = Matrix.random(this.width, 1);
+	}
+	
+	@Benchmark
+	public Matrix dotColumn() {
+		return Matrix.dot(this.a, this.column);
+	}
+	
+	@Benchmark
+	public Matrix dotSquare() {
+		return Matrix.dot(this.a, this.square);
+	}
+	
+	@Benchmark
+	public Matrix add() {
+		return Matrix.add(this.a, this.b);
+	}
+	
+	@Benchmark
+	public Matrix sub() {
+		return Matrix.sub(this.a, this.b);
+	}
+	
+	@Benchmark
+	public Matrix multiply() {
+		return Matrix.multiply(this.a, this.b);
+	}
+	
+	@Benchmark
+	public Matrix div() {
+		return Matrix.div(this.a, this.b);
+	}
+	
+	@Benchmark
+	public Matrix multiplyScalar() {
+		return Matrix.multiply(this.a, 0.5);
+	}
+	
+	@Benchmark
+	public Matrix transpose() {
+		return Matrix.transpose(this.a);
+	}
+	
+	@Benchmark
+	public Matrix sigmoid() {
+		return Activations.sigmoid(this.a);
+	}
+}
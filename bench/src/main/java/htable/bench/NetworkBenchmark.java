@@ -0,0 +1,77 @@
+package htable.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import htable.network.DenseNetwork;
+import htable.network.Encoding;
+import htable.util.Matrix;
+
+// DenseNetwork inference and a single gradient descent step.
+// 
+// inputs and outputs correspond to keyLimit and capacity of a table,
+// a hidden size of 0 gives the single layer network used by the table.
+// A training batch holds one record per output, as in a full table.
+// 
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkBenchmark {
+	
+	@Param({"16", "64"})
+	public int inputs;
+	
+	@Param({"0", "32"})
+	public int hidden;
+	
+	@Param({"16", "64"})
+	public int outputs;
+	
+	private DenseNetwork network;
+	private Matrix[] target_x;
+	private Matrix[] target_y;
+	
+	@Setup
+	public void setup() {
+		DenseNetwork.setLogging(false);
+		Matrix.randomSeed(42L);
+		this.network = (this.hidden == 0)
+				? new DenseNetwork(this.inputs, this.outputs)
+				: new DenseNetwork(this.inputs, this.hidden, this.outputs);
+		
+		// one normalised key per output
+		String[] keys = Keys.random(this.outputs, this.inputs, 42L);
+		this.target_x = new Matrix[this.outputs];
+		this.target_y = new Matrix[this.outputs];
+		for (int i=0; i < this.outputs; i++) {
+			this.target_x[i] = Encoding.stringNorm(keys[i], this.inputs, 0, 128);
+			this.target_y[i] = Encoding.oneHot(i, this.outputs);
+		}
+	}
+	
+	@Benchmark
+	public Matrix predict() {
+		return this.network.predict(this.target_x[0]);
+	}
+	
+	// target accuracy 0 stops fit after exactly one step
+	@Benchmark
+	public DenseNetwork fitStep() {
+		this.network.fit(this.target_x, this.target_y, 0.0, 1, 0, 1.0);
+		return this.network;
+	}
+}
@@ -0,0 +1,172 @@
+package htable.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import htable.NNHashTable;
+import htable.network.DenseNetwork;
+import htable.util.Matrix;
+
+// NNHashTable lookups, inserts and deletions.
+// 
+// Each trial fills a table of the given keyLimit and capacity with
+// records keys. Lookups are measured as average time. Inserts and
+// deletions retrain the network, so they are measured as single shot
+// times and the table is restored after every invocation.
+// 
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class TableBenchmark {
+	
+	// table filled once per trial
+	@State(Scope.Thread)
+	public static class Filled {
+		
+		@Param({"8", "16"})
+		public int keyLimit;
+		
+		@Param({"16", "32"})
+		public int capacity;
+		
+		@Param({"4", "8", "12"})
+		public int records;
+		
+		NNHashTable table;
+		List<String> order;
+		String[] keys;
+		String[] stored;
+		String inserted;
+		String missing;
+		int next;
+		
+		@Setup(Level.Trial)
+		public void fill() {
+			DenseNetwork.setLogging(false);
+			Matrix.randomSeed(42L);
+			
+			// one extra key for inserts and one key that is never inserted
+			this.keys = Keys.random(this.records + 2, this.keyLimit, 42L);
+			this.inserted = this.keys[this.records];
+			this.missing = this.keys[this.records + 1];
+			this.stored = Arrays.copyOf(this.keys, this.records);
+			
+			this.table = new NNHashTable(this.keyLimit, this.capacity);
+			this.order = new ArrayList<>();
+			for (int i=0; i < this.records; i++) {
+				this.table.put(this.keys[i], i);
+				this.order.add(this.keys[i]);
+			}
+		}
+	}
+	
+	// filled table with the inserted key removed after every invocation
+	@State(Scope.Thread)
+	public static class Inserted extends Filled {
+		
+		@TearDown(Level.Invocation)
+		public void restore() {
+			this.table.delete(this.inserted);
+		}
+	}
+	
+	// filled table with the deleted key reinserted after every invocation
+	@State(Scope.Thread)
+	public static class Deleted extends Filled {
+		
+		@Param({"first", "middle", "last"})
+		public String position;
+		
+		String deleted;
+		
+		// reinsert the deleted key at the end of the records
+		@TearDown(Level.Invocation)
+		public void restore() {
+			this.table.put(this.deleted, 0);
+			this.order.add(this.deleted);
+		}
+		
+		// record index targeted by the position parameter
+		int positionIndex() {
+			switch (this.position) {
+			case "first": return 0;
+			case "middle": return this.order.size() / 2;
+			default: return this.order.size() - 1;
+			}
+		}
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public Object getHit(Filled state) {
+		state.next = (state.next + 1) % state.records;
+		return state.table.get(state.keys[state.next]);
+	}
+	
+	// every stored key in one batched lookup, compare with records * getHit
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public Object[] getAll(Filled state) {
+		return state.table.getAll(state.stored);
+	}
+	
+	// a miss throws from the table, so the exception cost is included
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public Object getMiss(Filled state) {
+		try {
+			return state.table.get(state.missing);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return e;
+		}
+	}
+	
+	// a miss rejected by the key filter without throwing
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public boolean containsMiss(Filled state) {
+		return state.table.containsKey(state.missing);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public NNHashTable put(Inserted state) {
+		state.table.put(state.inserted, -1);
+		return state.table;
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public NNHashTable delete(Deleted state) {
+		state.deleted = state.order.remove(state.positionIndex());
+		state.table.delete(state.deleted);
+		return state.table;
+	}
+}
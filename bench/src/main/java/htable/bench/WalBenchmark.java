@@ -0,0 +1,82 @@
+package htable.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import htable.WriteAheadLog;
+
+// Write ahead log throughput for each sync policy.
+// 
+// Each operation appends a put and waits for it to be committed. The
+// log is written to the default temporary directory, run with
+// -Djava.io.tmpdir on the target disk to measure its fsync cost.
+// 
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalBenchmark {
+	
+	@Param({"ALWAYS", "GROUP", "INTERVAL", "NEVER"})
+	public WriteAheadLog.Sync sync;
+	
+	@Param({"16", "256"})
+	public int valueSize;
+	
+	private Path file;
+	private WriteAheadLog wal;
+	private byte[] value;
+	
+	@Setup(Level.Trial)
+	public void open() throws IOException {
+		this.file = Files.createTempFile("wal-bench", ".log");
+		this.wal = new WriteAheadLog(this.file, this.sync);
+		this.value = new byte[this.valueSize];
+	}
+	
+	@TearDown(Level.Iteration)
+	public void truncate() throws IOException {
+		this.wal.truncate();
+	}
+	
+	@TearDown(Level.Trial)
+	public void close() throws IOException {
+		this.wal.close();
+		Files.deleteIfExists(this.file);
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public long append() throws IOException {
+		long position = this.wal.appendPut("benchmark-key", this.value);
+		this.wal.commit(position);
+		return position;
+	}
+	
+	@Benchmark
+	@Threads(8)
+	public long appendConcurrent() throws IOException {
+		long position = this.wal.appendPut("benchmark-key", this.value);
+		this.wal.commit(position);
+		return position;
+	}
+}
@@ -0,0 +1,220 @@
+package htable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// NNHashTable persisted with a snapshot and a write ahead log.
+// 
+// Every successful put and delete is appended to the log before it is
+// acknowledged. On startup the latest snapshot is loaded and the log
+// tail is replayed with a single training pass, rather than retraining
+// once per logged operation. A checkpoint writes a new snapshot and
+// truncates the log, either on request or periodically in the
+// background.
+// 
+// Replaying is idempotent, so a crash between writing a snapshot and
+// truncating the log only replays operations already in the snapshot.
+// If the replayed records do not converge in one pass they are kept
+// with training pending, found by linear search until resume.
+// 
+// Operations are serialised on this instance, waiting for the log to
+// be durable happens outside the lock so concurrent writers can share
+// a sync with the GROUP policy.
+// 
+public class DurableNNHashTable implements Closeable {
+	
+	static final String SNAPSHOT = "table.snapshot";
+	static final String LOG = "table.wal";
+	
+	// files
+	private final Path snapshot;
+	private final WriteAheadLog wal;
+	private ScheduledExecutorService checkpointer;
+	
+	// failure of the latest background checkpoint, null after a success
+	private volatile Exception checkpointFailure;
+	
+	// table
+	private final NNHashTable table;
+	
+	public DurableNNHashTable(Path directory, int keyLimit, int capacity, int trainMaxSteps, int trainBufferSteps, double trainEta, WriteAheadLog.Sync sync) throws IOException {
+		Files.createDirectories(directory);
+		this.snapshot = directory.resolve(SNAPSHOT);
+		
+		// load the latest snapshot or create an empty table
+		this.table = Files.exists(this.snapshot)
+				? NNHashTable.load(this.snapshot)
+				: new NNHashTable(keyLimit, capacity, trainMaxSteps, trainBufferSteps, trainEta);
+		
+		// replay the log tail
+		this.wal = new WriteAheadLog(directory.resolve(LOG), sync);
+		try {
+			this.recover();
+		} catch (IOException | RuntimeException e) {
+			this.wal.close();
+			throw e;
+		}
+	}
+	
+	
+	// constructor with default training parameters
+	public DurableNNHashTable(Path directory, int keyLimit, int capacity, WriteAheadLog.Sync sync) throws IOException {
+		this(directory, keyLimit, capacity, 10_000, 0, 1.0, sync);
+	}
+	
+	
+	// insert record to table
+	public void put(String key, Object value) throws IOException {
+		long position;
+		synchronized (this) {
+			try {
+				this.table.put(key, value);
+			} catch (CancellationException e) {
+				
+				// the change was rolled back, nothing to log
+				throw e;
+			} catch (IllegalStateException e) {
+				
+				// the record is inserted even if training did not converge
+				this.wal.commit(this.wal.appendPut(key, value));
+				throw e;
+			}
+			position = this.wal.appendPut(key, value);
+		}
+		this.wal.commit(position);
+	}
+	
+	
+	// get value from table by key
+	public synchronized Object get(String key) {
+		return this.table.get(key);
+	}
+	
+	
+	// delete record from table by key
+	public void delete(String key) throws IOException {
+		long position;
+		synchronized (this) {
+			try {
+				this.table.delete(key);
+			} catch (CancellationException e) {
+				
+				// the change was rolled back, nothing to log
+				throw e;
+			} catch (IllegalStateException e) {
+				
+				// the record is deleted even if training did not converge
+				this.wal.commit(this.wal.appendDelete(key));
+				throw e;
+			}
+			position = this.wal.appendDelete(key);
+		}
+		this.wal.commit(position);
+	}
+	
+	
+	// get the number of records in the table
+	public synchronized int totalRecords() {
+		return this.table.totalRecords();
+	}
+	
+	
+	// check if training was left pending, see NNHashTable.resume
+	public synchronized boolean pending() {
+		return this.table.pending();
+	}
+	
+	
+	// continue training left pending by recovery or an update stopped early
+	// returns true once the network maps every key, false if training stopped early again
+	public synchronized boolean resume() {
+		return this.table.resume();
+	}
+	
+	
+	// write a snapshot and truncate the log
+	public synchronized void checkpoint() throws IOException {
+		this.table.save(this.snapshot);
+		this.wal.truncate();
+	}
+	
+	
+	// checkpoint periodically on a background thread
+	// failures are kept for checkpointFailure and thrown by close
+	public synchronized void startCheckpoints(long period, TimeUnit unit) {
+		if (this.checkpointer != null) return;
+		this.checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "table-checkpoint");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.checkpointer.scheduleWithFixedDelay(() -> {
+			try {
+				if (this.wal.size() > 0) this.checkpoint();
+				this.checkpointFailure = null;
+			} catch (IOException | IllegalStateException e) {
+				this.checkpointFailure = e;
+			}
+		}, period, period, unit);
+	}
+	
+	
+	// failure of the latest background checkpoint, or null if it succeeded
+	public Exception checkpointFailure() {
+		return this.checkpointFailure;
+	}
+	
+	
+	// stop background checkpoints and close the log
+	// throws the failure of the latest background checkpoint after closing
+	public void close() throws IOException {
+		ScheduledExecutorService checkpointer;
+		synchronized (this) {
+			checkpointer = this.checkpointer;
+			this.checkpointer = null;
+		}
+		if (checkpointer != null) {
+			checkpointer.shutdown();
+			try {
+				checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.wal.close();
+		
+		// report a failed background checkpoint
+		Exception failure = this.checkpointFailure;
+		this.checkpointFailure = null;
+		if (failure instanceof IOException) throw (IOException)failure;
+		if (failure != null) throw (RuntimeException)failure;
+	}
+	
+	
+	// apply logged operations and retrain once
+	// records are kept even if training does not converge, as they were by put,
+	// and left pending so they are still found
+	private void recover() throws IOException {
+		boolean[] changed = new boolean[1];
+		this.wal.replay(new WriteAheadLog.Handler() {
+			public void put(String key, Object value) {
+				changed[0] |= DurableNNHashTable.this.table.insertRecord(key, value);
+			}
+			public void delete(String key) {
+				changed[0] |= DurableNNHashTable.this.table.removeRecord(key);
+			}
+		});
+		if (!changed[0]) return;
+		try {
+			this.table.update();
+		} catch (IllegalStateException e) {
+			this.table.deferUpdate();
+		}
+	}
+}
@@ -0,0 +1,353 @@
+package htable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.random.RandomGenerator;
+
+import htable.metrics.TableMetrics;
+import htable.network.Activations;
+import htable.network.DenseNetwork;
+import htable.network.Encoding;
+import htable.util.Matrix;
+
+// Read only neural network based hash table built from a known key set.
+// 
+// The builder trains a network once for every record, retrying from a
+// new initialisation if the mapping is not perfect. Keys that are still
+// mapped to the wrong index after the last retry are kept in a small
+// stash. The built table keeps no training state, the network is packed
+// into flat row major arrays and lookups run a minimal forward pass:
+// 
+//   only the first key.length columns of the first layer are used since
+//   the remaining normalised characters are always zero
+// 
+//   the output sigmoid is skipped because it does not change the index
+//   of the maximum activation
+// 
+// Lookups do not modify the table so it can be shared between threads.
+// Gets, misses and stash hits can be recorded with enableMetrics.
+// 
+public final class ImmutableNNHashTable {
+	
+	// packed records
+	private final String[] keys;
+	private final Object[] values;
+	private final Map<String, Object> stash;
+	
+	// keys metadata
+	public final int keyLimit;
+	private final int minChar;
+	private final int maxChar;
+	
+	// packed network
+	private final int depth;
+	private final int[] layers;
+	private final double[][] weights;
+	private final double[][] biases;
+	
+	// instrumentation, null when disabled
+	private volatile TableMetrics metrics;
+	
+	private ImmutableNNHashTable(int keyLimit, int minChar, int maxChar, String[] keys, Object[] values,
+			Map<String, Object> stash, DenseNetwork network) {
+		this.keys = keys;
+		this.values = values;
+		this.stash = stash;
+		this.keyLimit = keyLimit;
+		this.minChar = minChar;
+		this.maxChar = maxChar;
+		
+		// pack network parameters
+		this.depth = network.depth();
+		this.layers = new int[this.depth+1];
+		this.weights = new double[this.depth][];
+		this.biases = new double[this.depth][];
+		this.layers[0] = network.weights(0).width;
+		for (int l=0; l < this.depth; l++) {
+			Matrix w = network.weights(l);
+			Matrix b = network.biases(l);
+			this.layers[l+1] = w.height;
+			this.weights[l] = new double[w.height * w.width];
+			this.biases[l] = new double[w.height];
+			for (int i=0; i < w.height; i++) {
+				for (int j=0; j < w.width; j++) {
+					this.weights[l][i * w.width + j] = w.get(i, j);
+				}
+				this.biases[l][i] = b.get(i, 0);
+			}
+		}
+	}
+	
+	
+	// get value from table by key
+	public Object get(String key) {
+		TableMetrics metrics = this.metrics;
+		if (metrics == null) return this.find(key, null);
+		long time = metrics.startTime();
+		long bytes = metrics.startBytes();
+		try {
+			return this.find(key, metrics);
+		} finally {
+			metrics.record(TableMetrics.GET, time, bytes);
+		}
+	}
+	private Object find(String key, TableMetrics metrics) {
+		
+		// map key to index
+		int index = this.hash(key);
+		
+		// return value at index
+		if (key.equals(this.keys[index])) return this.values[index];
+		
+		// otherwise check the stash
+		if (this.stash.containsKey(key)) {
+			if (metrics != null) metrics.stashHit();
+			return this.stash.get(key);
+		}
+		
+		// handle key not found
+		if (metrics != null) metrics.miss();
+		throw new ArrayIndexOutOfBoundsException("Could not find "+key+" at index "+index);
+	}
+	
+	
+	// get the number of records in the table
+	public int totalRecords() {
+		return this.keys.length;
+	}
+	
+	
+	// get the number of records that the network could not map
+	public int stashedRecords() {
+		return this.stash.size();
+	}
+	
+	
+	// enable instrumentation of gets
+	// returns the metrics instance, which can be registered with JMX
+	public TableMetrics enableMetrics() {
+		if (this.metrics == null) this.metrics = new TableMetrics();
+		return this.metrics;
+	}
+	
+	
+	// disable instrumentation of gets
+	public void disableMetrics() {
+		if (this.metrics != null) this.metrics.unregister();
+		this.metrics = null;
+	}
+	
+	
+	// get the metrics instance, or null if metrics are disabled
+	public TableMetrics metrics() {
+		return this.metrics;
+	}
+	
+	
+	// map key to index
+	private int hash(String key) {
+		
+		// handle invalid keys
+		if (key == null || key.isEmpty() || key.length() > this.keyLimit) throw new IllegalArgumentException("Key is invalid");
+		
+		// first layer over the characters of the key
+		double range = this.maxChar - this.minChar + 1;
+		int length = key.length();
+		int width = this.layers[0];
+		double[] activation = new double[this.layers[1]];
+		for (int i=0; i < activation.length; i++) {
+			double z = this.biases[0][i];
+			int row = i * width;
+			for (int j=0; j < length; j++) {
+				z += this.weights[0][row + j] * ((key.charAt(j) - this.minChar) / range);
+			}
+			activation[i] = z;
+		}
+		
+		// subsequent layers
+		for (int l=1; l < this.depth; l++) {
+			for (int j=0; j < activation.length; j++) {
+				activation[j] = Activations.sigmoid(activation[j]);
+			}
+			width = this.layers[l];
+			double[] next = new double[this.layers[l+1]];
+			for (int i=0; i < next.length; i++) {
+				double z = this.biases[l][i];
+				int row = i * width;
+				for (int j=0; j < width; j++) {
+					z += this.weights[l][row + j] * activation[j];
+				}
+				next[i] = z;
+			}
+			activation = next;
+		}
+		
+		// index of the maximum output
+		int max = 0;
+		for (int i=1; i < activation.length; i++) {
+			if (activation[i] > activation[max]) max = i;
+		}
+		return max;
+	}
+	
+	
+	// builder for an immutable table from a complete set of records
+	public static class Builder {
+		
+		private final int keyLimit;
+		private final Map<String, Object> records;
+		private int[] hidden;
+		private int maxSteps;
+		private int bufferSteps;
+		private double eta;
+		private int retries;
+		private int maxStash;
+		private RandomGenerator rng;
+		
+		public Builder(int keyLimit) {
+			
+			// handle invalid parameters
+			if (keyLimit < 1) throw new IllegalArgumentException("Invalid parameters, keyLimit cannot be less then 1");
+			
+			this.keyLimit = keyLimit;
+			this.records = new LinkedHashMap<>();
+			this.hidden = new int[0];
+			this.maxSteps = 10_000;
+			this.bufferSteps = 0;
+			this.eta = 1.0;
+			this.retries = 3;
+			this.maxStash = 0;
+		}
+		
+		
+		// add a record, later values for the same key replace earlier values
+		public Builder put(String key, Object value) {
+			if (key == null || key.isEmpty() || key.length() > this.keyLimit) throw new IllegalArgumentException("\""+key+"\" is an invalid key");
+			this.records.put(key, value);
+			return this;
+		}
+		
+		
+		// add records
+		public Builder putAll(Map<String, ?> records) {
+			for (Map.Entry<String, ?> record : records.entrySet()) {
+				this.put(record.getKey(), record.getValue());
+			}
+			return this;
+		}
+		
+		
+		// hidden layer sizes, none by default
+		public Builder hiddenLayers(int... hidden) {
+			this.hidden = hidden.clone();
+			return this;
+		}
+		
+		
+		// training parameters, see NNHashTable
+		public Builder training(int maxSteps, int bufferSteps, double eta) {
+			this.maxSteps = maxSteps;
+			this.bufferSteps = bufferSteps;
+			this.eta = eta;
+			return this;
+		}
+		
+		
+		// number of times to retrain from a new initialisation, 3 by default
+		public Builder retries(int retries) {
+			if (retries < 0) throw new IllegalArgumentException("Retries cannot be less than 0");
+			this.retries = retries;
+			return this;
+		}
+		
+		
+		// maximum number of records that can be stashed, 0 by default
+		public Builder maxStash(int maxStash) {
+			if (maxStash < 0) throw new IllegalArgumentException("Stash cannot be less than 0");
+			this.maxStash = maxStash;
+			return this;
+		}
+		
+		
+		// generator for network initialisation, the Matrix RNG by default
+		public Builder random(RandomGenerator rng) {
+			this.rng = rng;
+			return this;
+		}
+		
+		
+		// train the network and build the table
+		public ImmutableNNHashTable build() {
+			
+			// handle no records
+			int n = this.records.size();
+			if (n == 0) throw new IllegalStateException("Could not build table because there are no records");
+			
+			// pack records and keys metadata
+			String[] keys = new String[n];
+			Object[] values = new Object[n];
+			int minChar = 0;
+			int maxChar = 128;
+			int i = 0;
+			for (Map.Entry<String, Object> record : this.records.entrySet()) {
+				keys[i] = record.getKey();
+				values[i] = record.getValue();
+				for (int c=0; c < keys[i].length(); c++) {
+					minChar = Math.min(minChar, keys[i].charAt(c));
+					maxChar = Math.max(maxChar, keys[i].charAt(c));
+				}
+				i++;
+			}
+			
+			// setup target, each key is labelled with its index
+			Matrix[] target_x = new Matrix[n];
+			int[] target_labels = new int[n];
+			for (i=0; i < n; i++) {
+				target_x[i] = Encoding.stringNorm(keys[i], this.keyLimit, minChar, maxChar);
+				target_labels[i] = i;
+			}
+			
+			// setup layers
+			int[] layers = new int[this.hidden.length + 2];
+			layers[0] = this.keyLimit;
+			System.arraycopy(this.hidden, 0, layers, 1, this.hidden.length);
+			layers[layers.length-1] = n;
+			
+			// train until the mapping is perfect, keeping the best network
+			DenseNetwork best = null;
+			boolean[] bestMisses = null;
+			int bestCount = n + 1;
+			for (int attempt=0; attempt <= this.retries && bestCount > 0; attempt++) {
+				DenseNetwork network = new DenseNetwork(this.rng, layers);
+				try {
+					network.fit(target_x, target_labels, 1.0, this.maxSteps, this.bufferSteps, this.eta, 1, null);
+				} catch (IllegalStateException e) {
+					// failed to converge, the stragglers are counted below
+				}
+				
+				// verify mapping
+				boolean[] misses = new boolean[n];
+				int count = 0;
+				for (i=0; i < n; i++) {
+					misses[i] = network.predict(target_x[i]).max()[0] != i;
+					if (misses[i]) count++;
+				}
+				if (count < bestCount) {
+					best = network;
+					bestMisses = misses;
+					bestCount = count;
+				}
+			}
+			
+			// stash stragglers
+			if (bestCount > this.maxStash) throw new IllegalStateException("Could not build table, "+bestCount+" records could not be mapped and the stash holds "+this.maxStash);
+			Map<String, Object> stash = new HashMap<>();
+			for (i=0; i < n; i++) {
+				if (bestMisses[i]) stash.put(keys[i], values[i]);
+			}
+			
+			return new ImmutableNNHashTable(this.keyLimit, minChar, maxChar, keys, values, stash, best);
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package htable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.random.RandomGenerator;
+
+import htable.network.DenseNetwork;
+import htable.network.Encoding;
+import htable.util.Matrix;
+
+// Many small hash tables, one per tenant, sharing a hidden layer.
+// 
+// Every key is encoded by a shared trunk, a single hidden layer, and
+// each tenant maps the trunk features of its keys to indices with its
+// own output head. Inserts and deletions only retrain the head of the
+// tenant, whose inputs are the cached trunk features of its keys, so
+// memory and training grow with the heads rather than with a full
+// network per tenant.
+// 
+// The trunk starts from random weights. refreshTrunk trains it on the
+// keys of every tenant, through a temporary head over all keys, and
+// retrains the heads on the new features. A refresh costs training over
+// every key of every tenant, so it only runs when called, for example
+// after a put or delete fails to converge on the current trunk. As with
+// NNHashTable, a change whose head does not converge is kept and the
+// IllegalStateException is thrown to the caller.
+// 
+// Keys are normalised with one character range for all tenants, an
+// insert that widens the range retrains every head.
+// 
+public class MultiTenantNNHashTable {
+	
+	// shape
+	public final int keyLimit;
+	public final int capacity;
+	private int minChar;
+	private int maxChar;
+	
+	// shared trunk and tenants
+	private DenseNetwork trunk;
+	private final Map<String, Tenant> tenants;
+	private final RandomGenerator rng;
+	
+	// training
+	private final int maxSteps;
+	private final int bufferSteps;
+	private final double eta;
+	
+	public MultiTenantNNHashTable(int keyLimit, int trunkSize, int capacity, int trainMaxSteps, int trainBufferSteps, double trainEta, RandomGenerator rng) {
+		
+		// handle invalid parameters
+		if (keyLimit < 1 || trunkSize < 1 || capacity < 1) throw new IllegalArgumentException("Invalid parameters, keyLimit, trunkSize and capacity cannot be less then 1");
+		
+		this.keyLimit = keyLimit;
+		this.capacity = capacity;
+		this.minChar = 0;
+		this.maxChar = 128;
+		this.trunk = new DenseNetwork(rng, keyLimit, trunkSize);
+		this.tenants = new HashMap<>();
+		this.rng = rng;
+		this.maxSteps = trainMaxSteps;
+		this.bufferSteps = trainBufferSteps;
+		this.eta = trainEta;
+	}
+	
+	
+	// constructor with default training parameters, capacity is per tenant
+	public MultiTenantNNHashTable(int keyLimit, int trunkSize, int capacity) {
+		this(keyLimit, trunkSize, capacity, 10_000, 0, 1.0, null);
+	}
+	
+	
+	// insert record to the table of a tenant, creating the tenant if needed
+	public void put(String tenant, String key, Object value) {
+		this.throwInvalidKey(key);
+		Tenant table = this.tenants.computeIfAbsent(tenant, t -> new Tenant());
+		
+		// overwrite value if the key is found
+		int index = table.locate(key);
+		if (index >= 0) {
+			table.values[index] = value;
+			return;
+		}
+		
+		// handle table full
+		if (table.records == this.capacity) throw new ArrayIndexOutOfBoundsException("Could not insert "+key+" because the table of "+tenant+" is full.");
+		
+		// insert record
+		table.keys[table.records] = key;
+		table.values[table.records] = value;
+		table.features[table.records] = null;
+		table.records++;
+		
+		// update the head, or every head if the character range widened
+		if (this.widen(key)) {
+			this.trainHeads();
+		} else {
+			table.fit();
+		}
+	}
+	
+	
+	// get value from the table of a tenant by key
+	public Object get(String tenant, String key) {
+		this.throwInvalidKey(key);
+		Tenant table = this.tenants.get(tenant);
+		int index = (table == null) ? -1 : table.locate(key);
+		if (index < 0) throw new ArrayIndexOutOfBoundsException("Could not find "+key+" for "+tenant);
+		return table.values[index];
+	}
+	
+	
+	// check if the table of a tenant holds a record for key, never throws
+	public boolean containsKey(String tenant, String key) {
+		if (key == null || key.isEmpty() || key.length() > this.keyLimit) return false;
+		Tenant table = this.tenants.get(tenant);
+		return table != null && table.locate(key) >= 0;
+	}
+	
+	
+	// delete record from the table of a tenant by key
+	public void delete(String tenant, String key) {
+		this.throwInvalidKey(key);
+		Tenant table = this.tenants.get(tenant);
+		int index = (table == null) ? -1 : table.locate(key);
+		if (index < 0) throw new ArrayIndexOutOfBoundsException("Could not find "+key+" for "+tenant);
+		
+		// delete record and defragment
+		table.records--;
+		for (int i=index; i < table.records; i++) {
+			table.keys[i] = table.keys[i+1];
+			table.values[i] = table.values[i+1];
+			table.features[i] = table.features[i+1];
+		}
+		table.keys[table.records] = null;
+		table.values[table.records] = null;
+		
+		// update the head
+		table.fit();
+	}
+	
+	
+	// remove a tenant and all of its records
+	public void removeTenant(String tenant) {
+		this.tenants.remove(tenant);
+	}
+	
+	
+	// number of tenants
+	public int tenants() {
+		return this.tenants.size();
+	}
+	
+	
+	// get the number of records in the table of a tenant
+	public int totalRecords(String tenant) {
+		Tenant table = this.tenants.get(tenant);
+		return (table == null) ? 0 : table.records;
+	}
+	
+	
+	// number of network parameters, the trunk plus every head
+	public long parameters() {
+		long parameters = parameters(this.trunk);
+		for (Tenant table : this.tenants.values()) {
+			parameters += parameters(table.head);
+		}
+		return parameters;
+	}
+	
+	
+	// train the trunk on the keys of every tenant and retrain every head
+	// 
+	// the trunk is trained with a temporary head that maps every key to
+	// its own output, which separates the keys of all tenants in the
+	// trunk features. That mapping does not need to converge since each
+	// head only needs the keys of its own tenant separated, so the new
+	// trunk is judged by the heads instead. Copies of the heads are
+	// trained on it and the trunk and heads are only replaced if every
+	// head converges, otherwise the current ones are kept and the
+	// IllegalStateException of the head is thrown
+	public void refreshTrunk() {
+		
+		// setup target, every key of every tenant labelled with its own output
+		List<Matrix> union = new ArrayList<>();
+		for (Tenant table : this.tenants.values()) {
+			for (int i=0; i < table.records; i++) {
+				union.add(this.keyNorm(table.keys[i]));
+			}
+		}
+		if (union.isEmpty()) return;
+		Matrix[] target_x = union.toArray(new Matrix[0]);
+		int[] target_labels = new int[target_x.length];
+		for (int i=0; i < target_labels.length; i++) {
+			target_labels[i] = i;
+		}
+		
+		// train a copy of the trunk with a temporary head
+		DenseNetwork trunk = this.trunk.copy();
+		DenseNetwork head = new DenseNetwork(this.rng, trunk.weights(0).height, target_x.length);
+		DenseNetwork network = new DenseNetwork(
+				new Matrix[] {trunk.weights(0), head.weights(0)},
+				new Matrix[] {trunk.biases(0), head.biases(0)});
+		try {
+			network.fit(target_x, target_labels, 1.0, this.maxSteps, this.bufferSteps, this.eta, 1, null);
+		} catch (IllegalStateException e) {
+			// judged by the heads below
+		}
+		
+		// train copies of the heads on the new features
+		List<Tenant> tables = new ArrayList<>(this.tenants.values());
+		DenseNetwork[] heads = new DenseNetwork[tables.size()];
+		Matrix[][] features = new Matrix[tables.size()][];
+		for (int t=0; t < heads.length; t++) {
+			heads[t] = tables.get(t).head.copy();
+			features[t] = new Matrix[this.capacity];
+			tables.get(t).fit(trunk, heads[t], features[t]);
+		}
+		
+		// every head converged
+		this.trunk = trunk;
+		for (int t=0; t < heads.length; t++) {
+			tables.get(t).head = heads[t];
+			tables.get(t).features = features[t];
+		}
+	}
+	
+	
+	// retrain every head on new features
+	// the records of heads that fail to converge are kept, as with NNHashTable
+	private void trainHeads() {
+		IllegalStateException failure = null;
+		for (Tenant table : this.tenants.values()) {
+			Arrays.fill(table.features, null);
+			try {
+				table.fit();
+			} catch (IllegalStateException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) throw failure;
+	}
+	
+	
+	// widen the character range for key, returns true if it changed
+	private boolean widen(String key) {
+		int minChar = this.minChar;
+		int maxChar = this.maxChar;
+		for (int i=0; i < key.length(); i++) {
+			this.minChar = Math.min(this.minChar, key.charAt(i));
+			this.maxChar = Math.max(this.maxChar, key.charAt(i));
+		}
+		return this.minChar != minChar || this.maxChar != maxChar;
+	}
+	
+	
+	// features of a key under trunk
+	private Matrix features(DenseNetwork trunk, String key) {
+		return trunk.predict(this.keyNorm(key), key.length());
+	}
+	
+	
+	// convert key to column vector of normalised character values
+	private Matrix keyNorm(String key) {
+		return Encoding.stringNorm(key, this.keyLimit, this.minChar, this.maxChar);
+	}
+	
+	
+	private static long parameters(DenseNetwork network) {
+		long parameters = 0;
+		for (int l=0; l < network.depth(); l++) {
+			parameters += (long)network.weights(l).height * (network.weights(l).width + 1);
+		}
+		return parameters;
+	}
+	
+	
+	// throw an exception if a key is invalid
+	private void throwInvalidKey(String key) {
+		if (key == null || key.isEmpty() || key.length() > this.keyLimit) throw new IllegalArgumentException("\""+key+"\" is an invalid key");
+	}
+	
+	
+	// records and output head of one tenant
+	private final class Tenant {
+		
+		private final String[] keys;
+		private final Object[] values;
+		private int records;
+		
+		// output head over the trunk features, cached per record
+		private DenseNetwork head;
+		private Matrix[] features;
+		
+		Tenant() {
+			int capacity = MultiTenantNNHashTable.this.capacity;
+			this.keys = new String[capacity];
+			this.values = new Object[capacity];
+			this.head = new DenseNetwork(MultiTenantNNHashTable.this.rng, MultiTenantNNHashTable.this.trunk.weights(0).height, capacity);
+			this.features = new Matrix[capacity];
+		}
+		
+		
+		// index of key, or -1 if not found
+		int locate(String key) {
+			if (this.records == 0) return -1;
+			MultiTenantNNHashTable container = MultiTenantNNHashTable.this;
+			int index = this.head.predict(container.features(container.trunk, key)).max()[0];
+			return key.equals(this.keys[index]) ? index : -1;
+		}
+		
+		
+		// train the head on the cached features of the records
+		void fit() {
+			this.fit(MultiTenantNNHashTable.this.trunk, this.head, this.features);
+		}
+		
+		
+		// train head on the features of the records under trunk, filling the missing features
+		void fit(DenseNetwork trunk, DenseNetwork head, Matrix[] features) {
+			if (this.records == 0) return;
+			MultiTenantNNHashTable container = MultiTenantNNHashTable.this;
+			Matrix[] target_x = new Matrix[this.records];
+			int[] target_labels = new int[this.records];
+			for (int i=0; i < this.records; i++) {
+				if (features[i] == null) features[i] = container.features(trunk, this.keys[i]);
+				target_x[i] = features[i];
+				target_labels[i] = i;
+			}
+			head.fit(target_x, target_labels, 1.0, container.maxSteps, container.bufferSteps, container.eta, 1, null);
+		}
+	}
+}
@@ -1,8 +1,34 @@
 package htable;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.random.RandomGenerator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import htable.metrics.TableMetrics;
 import htable.network.DenseNetwork;
 import htable.network.Encoding;
+import htable.network.SparseNetwork;
+import htable.network.TrainingBudget;
+import htable.util.BloomFilter;
 import htable.util.Matrix;
+import htable.util.SlotCache;
 
 // Neural network based hash table with deletions.
 // 
@@ -16,6 +42,47 @@ import htable.util.Matrix;
 // 
 // Retrieving records is always constant time O(get) = O(1) regardless of n
 // 
+// A Bloom filter of the keys is checked before the network, so most
+// lookups of absent keys return without a forward pass. containsKey,
+// getOrDefault and getOptional report absent keys without throwing.
+// 
+// getAll looks up many keys with one forward pass per batch of keys,
+// the keys are encoded as the columns of one input matrix so each layer
+// is a single matrix product rather than a product per key. Large
+// batches are split between threads.
+// 
+// An optional cache maps recently hashed keys to their index without a
+// forward pass. Cached indices are tagged with the generation of the
+// network, which changes on every update, so they are never stale.
+// 
+// After training, compress prunes the smallest weights into a sparse
+// copy of the network that is used for single key lookups until the
+// next update. The copy is only used if it still maps every key to its
+// index, otherwise lookups stay on the dense network.
+// 
+// Updates can be given a wall clock limit and cancelled from another
+// thread with cancelTraining. When training stops early the budget
+// policy either keeps the change with the partially trained network,
+// looking keys up by linear search until resume completes training,
+// or rolls the change and the network back and throws a
+// CancellationException.
+// 
+// Training reuses the encoding of each key from earlier updates, the
+// encodings are only rebuilt when an insert widens the character range.
+// Keys are trained against their index directly rather than one hot
+// vectors, so training memory does not grow with capacity per record.
+// 
+// forEach, keys and entries iterate the records in index order without
+// copying them. Streams split the records evenly for parallel use. The
+// views are fail-fast, an insert, delete or rollback after a view starts
+// makes its next element throw a ConcurrentModificationException while
+// overwritten values are seen in place. As with every other operation,
+// writes from other threads must be excluded by the caller.
+// 
+// Operations can optionally be instrumented with latency histograms and
+// allocation counters, see enableMetrics. When metrics are disabled each
+// operation only pays for a null check.
+// 
 public class NNHashTable {
 	
 	// parallel arrays
@@ -23,19 +90,75 @@ public class NNHashTable {
 	private String[] keys;
 	private Object[] values;
 	private int records;
+	private BloomFilter filter;
+	
+	// structural changes to the records, checked by iterators
+	private int modifications;
 	
 	// keys metadata
 	public final int keyLimit;
 	private int minChar;
 	private int maxChar;
 	
+	// normalised keys for training, parallel to keys, null until encoded
+	// and cleared when the character range changes
+	private Matrix[] encoded;
+	
 	// hash function
 	private DenseNetwork hashfn;
 	private int maxSteps;
 	private int bufferSteps;
 	private double eta;
+	private long generation;
+	
+	// probes the network was trained for, used on lookup, and probes for
+	// the next update, which differ until an update succeeds after setProbes
+	private int probes;
+	private int trainProbes;
+	
+	// hard example mining, disabled when recheck is 1
+	private double hardMargin;
+	private int recheck;
+	
+	// training limit of each update in nanoseconds, 0 for no limit
+	private long trainLimit;
+	private BudgetPolicy policy;
+	private boolean trainingPending;
+	
+	// budget of the running update, null when not training
+	private volatile TrainingBudget training;
+	
+	// pruned copy of the hash function, null until compressed
+	private SparseNetwork compressed;
+	
+	// hot key cache, null when disabled
+	private SlotCache cache;
+	
+	// instrumentation, null when disabled
+	private TableMetrics metrics;
+	
+	// keys per forward pass in getAll, larger lookups are predicted in parallel
+	private static final int BATCH = 64;
+	private static final int PARALLEL_BATCH = 4 * BATCH;
 	
 	public NNHashTable(int keyLimit, int capacity, int trainMaxSteps, int trainBufferSteps, double trainEta) {
+		this(keyLimit, capacity, trainMaxSteps, trainBufferSteps, trainEta, null);
+	}
+	
+	
+	// constructor with a specific generator for network initialisation
+	// 
+	// tables built in parallel should each be given their own generator,
+	// for example from Matrix.randomStreams, otherwise all tables share
+	// the Matrix RNG
+	public NNHashTable(int keyLimit, int capacity, int trainMaxSteps, int trainBufferSteps, double trainEta, RandomGenerator rng) {
+		this(keyLimit, capacity, trainMaxSteps, trainBufferSteps, trainEta, rng, new int[0]);
+	}
+	
+	
+	// constructor with hidden layers between the key and the index outputs,
+	// none by default, see TableTuner for choosing the sizes
+	public NNHashTable(int keyLimit, int capacity, int trainMaxSteps, int trainBufferSteps, double trainEta, RandomGenerator rng, int... hiddenLayers) {
 		
 		// handle invalid parameters
 		if (keyLimit < 1 || capacity < 1) throw new IllegalArgumentException("Invalid parameters, keyLimit and capacity cannot be less then 1");
@@ -44,7 +167,9 @@ public class NNHashTable {
 		this.size = capacity;
 		this.keys = new String[this.size];
 		this.values = new Object[this.size];
+		this.encoded = new Matrix[this.size];
 		this.records = 0;
+		this.filter = new BloomFilter(this.size);
 		
 		// setup keys metadata
 		this.keyLimit = keyLimit;
@@ -52,10 +177,18 @@ public class NNHashTable {
 		this.maxChar = 128;
 		
 		// setup network
-		this.hashfn = new DenseNetwork(this.keyLimit, this.size);
+		int[] layers = new int[hiddenLayers.length + 2];
+		layers[0] = this.keyLimit;
+		System.arraycopy(hiddenLayers, 0, layers, 1, hiddenLayers.length);
+		layers[layers.length-1] = this.size;
+		this.hashfn = new DenseNetwork(rng, layers);
 		this.maxSteps = trainMaxSteps;
 		this.bufferSteps = trainBufferSteps;
 		this.eta = trainEta;
+		this.probes = 1;
+		this.trainProbes = 1;
+		this.recheck = 1;
+		this.policy = BudgetPolicy.PENDING;
 	}
 	
 	
@@ -65,8 +198,70 @@ public class NNHashTable {
 	}
 	
 	
+	// constructor for a table restored with a trained network
+	NNHashTable(int keyLimit, int capacity, int trainMaxSteps, int trainBufferSteps, double trainEta, int probes,
+			int minChar, int maxChar, String[] keys, Object[] values, int records, DenseNetwork hashfn) {
+		this.size = capacity;
+		this.keys = keys;
+		this.values = values;
+		this.encoded = new Matrix[capacity];
+		this.records = records;
+		this.keyLimit = keyLimit;
+		this.minChar = minChar;
+		this.maxChar = maxChar;
+		this.hashfn = hashfn;
+		this.filter = new BloomFilter(this.size);
+		this.rebuildFilter();
+		this.maxSteps = trainMaxSteps;
+		this.bufferSteps = trainBufferSteps;
+		this.eta = trainEta;
+		this.probes = probes;
+		this.trainProbes = probes;
+		this.recheck = 1;
+		this.policy = BudgetPolicy.PENDING;
+	}
+	
+	
+	// load a table from a snapshot file
+	// 
+	// the trained network is restored so the table serves lookups
+	// without retraining, values are deserialised on first lookup
+	public static NNHashTable load(Path file) throws IOException {
+		return TableSnapshot.read(file);
+	}
+	
+	
+	// save the table to a snapshot file, values must be serializable
+	public void save(Path file) throws IOException {
+		this.throwTrainingPending();
+		TableSnapshot.write(file, this.keyLimit, this.size, this.minChar, this.maxChar,
+				this.maxSteps, this.bufferSteps, this.eta, this.probes, this.hashfn, this.keys, this.values, this.records);
+	}
+	
+	
+	// write the table to a stream in the snapshot format
+	void save(OutputStream stream) throws IOException {
+		this.throwTrainingPending();
+		TableSnapshot.write(stream, this.keyLimit, this.size, this.minChar, this.maxChar,
+				this.maxSteps, this.bufferSteps, this.eta, this.probes, this.hashfn, this.keys, this.values, this.records);
+	}
+	
+	
 	// insert record to table
 	public void put(String key, Object value) {
+		if (this.metrics == null) {
+			this.insert(key, value);
+			return;
+		}
+		long time = this.metrics.startTime();
+		long bytes = this.metrics.startBytes();
+		try {
+			this.insert(key, value);
+		} finally {
+			this.metrics.record(TableMetrics.PUT, time, bytes);
+		}
+	}
+	private void insert(String key, Object value) {
 		
 		// map key to index
 		int index = this.hash(key);
@@ -78,68 +273,406 @@ public class NNHashTable {
 		// otherwise insert at next available position
 		} else {
 			
-			// handle table full
-			if (this.records == this.size) throw new ArrayIndexOutOfBoundsException("Could not insert "+key+" because table is full.");
-			
 			// insert record
-			this.keys[this.records] = key;
-			this.values[this.records] = value;
-			this.records++;
-			
-			// update keys metadata
-			for (int i=0; i < key.length(); i++) {
-				this.minChar = Math.min(this.minChar, key.charAt(i));
-				this.maxChar = Math.max(this.maxChar, key.charAt(i));
-			}
+			Checkpoint checkpoint = this.checkpoint();
+			this.append(key, value);
 			
 			// update hash function
-			this.update();
+			this.update(checkpoint);
 		}
 	}
 	
 	
+	// insert records to table, updating the hash function once
+	// 
+	// equivalent to calling put for every record but the network is
+	// only trained after the last record is inserted, no records are
+	// inserted if there is not enough space for all of them
+	public void putAll(Map<String, ?> records) {
+		
+		// handle invalid keys and table full
+		int inserts = 0;
+		for (String key : records.keySet()) {
+			this.throwInvalidKey(key);
+			if (this.indexOf(key) < 0) inserts++;
+		}
+		if (this.records + inserts > this.size) throw new ArrayIndexOutOfBoundsException("Could not insert "+inserts+" records because table is full.");
+		
+		// insert records
+		Checkpoint checkpoint = this.checkpoint();
+		boolean inserted = false;
+		for (Map.Entry<String, ?> record : records.entrySet()) {
+			inserted |= this.insertRecord(record.getKey(), record.getValue());
+		}
+		
+		// update hash function
+		if (inserted) this.update(checkpoint);
+	}
+	
+	
+	// delete records from table by key, updating the hash function once
+	// keys that are not in the table are ignored
+	public void deleteAll(Collection<String> keys) {
+		Checkpoint checkpoint = this.checkpoint();
+		boolean removed = false;
+		for (String key : keys) {
+			removed |= this.removeRecord(key);
+		}
+		if (removed) this.update(checkpoint);
+	}
+	
+	
 	// get value from table by key
 	public Object get(String key) {
+		if (this.metrics == null) return this.find(key);
+		long time = this.metrics.startTime();
+		long bytes = this.metrics.startBytes();
+		try {
+			return this.find(key);
+		} finally {
+			this.metrics.record(TableMetrics.GET, time, bytes);
+		}
+	}
+	private Object find(String key) {
 		
 		// handle table empty
-		if (this.records == 0) throw new ArrayIndexOutOfBoundsException("Could not find "+key+" because table is empty.");
+		if (this.records == 0) {
+			if (this.metrics != null) this.metrics.miss();
+			throw new ArrayIndexOutOfBoundsException("Could not find "+key+" because table is empty.");
+		}
+		
+		// handle key rejected by the filter
+		this.throwInvalidKey(key);
+		if (!this.filter.mightContain(key)) {
+			if (this.metrics != null) this.metrics.miss();
+			throw new ArrayIndexOutOfBoundsException("Could not find "+key);
+		}
 		
 		// map key to index 
 		int index = this.hash(key);
 		
 		// handle key not found
-		if (!key.equals(this.keys[index])) throw new ArrayIndexOutOfBoundsException("Could not find "+key+" at index "+index);
-			
+		if (!key.equals(this.keys[index])) {
+			if (this.metrics != null) this.metrics.miss();
+			throw new ArrayIndexOutOfBoundsException("Could not find "+key+" at index "+index);
+		}
+		
 		// return value at index
-		return this.values[index];
+		return this.value(index);
+	}
+	
+	
+	// check if the table holds a record for key, never throws
+	public boolean containsKey(String key) {
+		return this.probe(key) >= 0;
+	}
+	
+	
+	// get value from table by key, or defaultValue if the key is not found
+	// never throws for absent or invalid keys
+	public Object getOrDefault(String key, Object defaultValue) {
+		int index = this.probe(key);
+		return (index < 0) ? defaultValue : this.value(index);
+	}
+	
+	
+	// get value from table by key, empty if the key is not found or the
+	// value is null, never throws for absent or invalid keys
+	public Optional<Object> getOptional(String key) {
+		int index = this.probe(key);
+		return (index < 0) ? Optional.empty() : Optional.ofNullable(this.value(index));
+	}
+	
+	
+	// get values from table for many keys, the value of keys[i] is at index i
+	// null for absent or invalid keys, never throws for absent or invalid keys
+	public Object[] getAll(String[] keys) {
+		int[] indices = this.probeAll(keys);
+		Object[] values = new Object[keys.length];
+		for (int i=0; i < keys.length; i++) {
+			if (indices[i] >= 0) values[i] = this.value(indices[i]);
+		}
+		return values;
+	}
+	
+	
+	// get the records of the keys that are found in the table, in iteration
+	// order of keys, never throws for absent or invalid keys
+	public Map<String, Object> getAll(Collection<String> keys) {
+		String[] array = keys.toArray(new String[0]);
+		int[] indices = this.probeAll(array);
+		Map<String, Object> found = new LinkedHashMap<>();
+		for (int i=0; i < array.length; i++) {
+			if (indices[i] >= 0) found.put(array[i], this.value(indices[i]));
+		}
+		return found;
 	}
 	
 	
 	// delete record from table by key
 	public void delete(String key) {
+		if (this.metrics == null) {
+			this.remove(key);
+			return;
+		}
+		long time = this.metrics.startTime();
+		long bytes = this.metrics.startBytes();
+		try {
+			this.remove(key);
+		} finally {
+			this.metrics.record(TableMetrics.DELETE, time, bytes);
+		}
+	}
+	private void remove(String key) {
 		
 		// handle table empty
 		if (this.records == 0) throw new ArrayIndexOutOfBoundsException("Could not find "+key+" because table is empty.");
 		
+		// handle key rejected by the filter
+		this.throwInvalidKey(key);
+		if (!this.filter.mightContain(key)) throw new ArrayIndexOutOfBoundsException("Could not find "+key);
+		
 		// map key to index 
 		int index = this.hash(key);
 		
 		// handle key not found
 		if (!key.equals(this.keys[index])) throw new ArrayIndexOutOfBoundsException("Could not find "+key+" at index "+index);
 		
+		// delete record
+		Checkpoint checkpoint = this.checkpoint();
+		this.removeAt(index);
+		
+		// update hash function
+		this.update(checkpoint);
+	}
+	
+	
+	// insert or overwrite a record without updating the hash function
+	// returns true if a new record was inserted
+	// 
+	// the key is found by a linear search since the network may not map
+	// keys inserted since the last update, keys rejected by the filter
+	// are appended without searching
+	boolean insertRecord(String key, Object value) {
+		int index = this.filter.mightContain(key) ? this.indexOf(key) : -1;
+		if (index >= 0) {
+			this.values[index] = value;
+			return false;
+		}
+		this.append(key, value);
+		return true;
+	}
+	
+	
+	// check if key is in the table by linear search, for records inserted without updating
+	boolean containsRecord(String key) {
+		return this.filter.mightContain(key) && this.indexOf(key) >= 0;
+	}
+	
+	
+	// delete a record without updating the hash function
+	// returns true if the key was found
+	boolean removeRecord(String key) {
+		int index = this.filter.mightContain(key) ? this.indexOf(key) : -1;
+		if (index < 0) return false;
+		this.removeAt(index);
+		return true;
+	}
+	
+	
+	// insert record at the next available position and update keys metadata
+	private void append(String key, Object value) {
+		
+		// handle table full
+		if (this.records == this.size) throw new ArrayIndexOutOfBoundsException("Could not insert "+key+" because table is full.");
+		
+		// insert record
+		this.keys[this.records] = key;
+		this.values[this.records] = value;
+		this.encoded[this.records] = null;
+		this.records++;
+		this.modifications++;
+		this.filter.add(key);
+		
+		// update keys metadata, encodings are relative to the character range
+		int minChar = this.minChar;
+		int maxChar = this.maxChar;
+		for (int i=0; i < key.length(); i++) {
+			this.minChar = Math.min(this.minChar, key.charAt(i));
+			this.maxChar = Math.max(this.maxChar, key.charAt(i));
+		}
+		if (this.minChar != minChar || this.maxChar != maxChar) Arrays.fill(this.encoded, null);
+	}
+	
+	
+	// delete record at index and defragment
+	private void removeAt(int index) {
+		
+		// indices of the following records change
+		this.generation++;
+		
 		// delete record
 		//this.keys[index] = null;
 		//this.values[index] = null;
 		this.records--;
+		this.modifications++;
 		
 		// defragment
 		for (int i=index; i < this.records; i++) {
 			this.keys[i] = this.keys[i+1];
 			this.values[i] = this.values[i+1];
+			this.encoded[i] = this.encoded[i+1];
 		}
 		
-		// update hash function
-		this.update();
+		// keys cannot be removed from the filter
+		this.rebuildFilter();
+	}
+	
+	
+	// refill the filter with the keys in the table
+	private void rebuildFilter() {
+		this.filter.clear();
+		for (int i=0; i < this.records; i++) {
+			this.filter.add(this.keys[i]);
+		}
+	}
+	
+	
+	// index of key, or -1 if the key is invalid or not found
+	private int probe(String key) {
+		if (this.metrics == null) return this.locate(key);
+		long time = this.metrics.startTime();
+		long bytes = this.metrics.startBytes();
+		try {
+			int index = this.locate(key);
+			if (index < 0) this.metrics.miss();
+			return index;
+		} finally {
+			this.metrics.record(TableMetrics.GET, time, bytes);
+		}
+	}
+	private int locate(String key) {
+		
+		// handle invalid keys, table empty and keys rejected by the filter
+		if (key == null || key.isEmpty() || key.length() > this.keyLimit) return -1;
+		if (this.records == 0 || !this.filter.mightContain(key)) return -1;
+		
+		// map key to index
+		int index = this.hash(key);
+		return key.equals(this.keys[index]) ? index : -1;
+	}
+	
+	
+	// index of each key, or -1 if the key is invalid or not found
+	// every key is recorded as a get, sharing the latency of the batch
+	private int[] probeAll(String[] keys) {
+		if (this.metrics == null) return this.locateAll(keys);
+		long time = this.metrics.startTime();
+		long bytes = this.metrics.startBytes();
+		try {
+			return this.locateAll(keys);
+		} finally {
+			this.metrics.record(TableMetrics.GET, time, bytes, keys.length);
+		}
+	}
+	
+	
+	// keys that pass the filter and miss the cache are predicted in batches,
+	// each batch is recorded as a single hash in the metrics
+	private int[] locateAll(String[] keys) {
+		
+		// resolve keys without the network where possible
+		int[] indices = new int[keys.length];
+		int[] pending = new int[keys.length];
+		int count = 0;
+		for (int i=0; i < keys.length; i++) {
+			String key = keys[i];
+			indices[i] = -1;
+			if (key == null || key.isEmpty() || key.length() > this.keyLimit) continue;
+			if (this.records == 0 || !this.filter.mightContain(key)) continue;
+			int index = (this.cache == null) ? -1 : this.cache.get(key, this.generation);
+			if (index >= 0) {
+				indices[i] = index;
+			} else {
+				pending[count++] = i;
+			}
+		}
+		
+		// map remaining keys to indices
+		if (count > 0) {
+			if (this.metrics == null) {
+				this.indexAll(keys, pending, count, indices);
+			} else {
+				long time = this.metrics.startTime();
+				long bytes = this.metrics.startBytes();
+				try {
+					this.indexAll(keys, pending, count, indices);
+				} finally {
+					this.metrics.record(TableMetrics.HASH, time, bytes);
+				}
+			}
+		}
+		
+		// compare keys at their indices
+		for (int i=0; i < keys.length; i++) {
+			if (indices[i] >= 0 && !keys[i].equals(this.keys[indices[i]])) indices[i] = -1;
+			if (indices[i] < 0 && this.metrics != null) this.metrics.miss();
+		}
+		return indices;
+	}
+	
+	
+	// index of keys[pending[k]] for the first count pending keys, written to indices
+	private void indexAll(String[] keys, int[] pending, int count, int[] indices) {
+		
+		// the network does not map every key until pending training completes
+		if (this.trainingPending) {
+			for (int k=0; k < count; k++) {
+				indices[pending[k]] = this.indexOf(keys[pending[k]]);
+			}
+			return;
+		}
+		
+		// predict batches, in parallel for large lookups
+		int batches = (count + BATCH - 1) / BATCH;
+		IntStream stream = IntStream.range(0, batches);
+		if (count >= PARALLEL_BATCH) stream = stream.parallel();
+		stream.forEach(b -> {
+			
+			// string keys -> matrix of normalised keys
+			int from = b * BATCH;
+			int to = Math.min(count, from + BATCH);
+			String[] batch = new String[to - from];
+			int active = 0;
+			for (int k=from; k < to; k++) {
+				batch[k - from] = keys[pending[k]];
+				active = Math.max(active, batch[k - from].length());
+			}
+			Matrix xs = Encoding.stringNorm(batch, this.keyLimit, this.minChar, this.maxChar);
+			
+			// matrix of predictions -> max index of each column
+			Matrix predictions = this.hashfn.predictBatch(xs, active);
+			int[] max = (this.probes == 1) ? predictions.columnMax() : null;
+			for (int k=from; k < to; k++) {
+				indices[pending[k]] = (max != null) ? max[k - from] : this.probeTopK(batch[k - from], predictions.getColumn(k - from));
+			}
+		});
+		
+		// cache indices for the current network
+		if (this.cache != null) {
+			for (int k=0; k < count; k++) {
+				this.cache.put(keys[pending[k]], indices[pending[k]], this.generation);
+			}
+		}
+	}
+	
+	
+	// index of key found by linear search, or -1 if not found
+	private int indexOf(String key) {
+		for (int i=0; i < this.records; i++) {
+			if (this.keys[i].equals(key)) return i;
+		}
+		return -1;
 	}
 	
 	
@@ -149,15 +682,279 @@ public class NNHashTable {
 	}
 	
 	
+	// perform action for each record in index order
+	public void forEach(BiConsumer<String, Object> action) {
+		int modifications = this.modifications;
+		for (int i=0; i < this.records; i++) {
+			if (this.modifications != modifications) throw new ConcurrentModificationException();
+			action.accept(this.keys[i], this.value(i));
+		}
+		if (this.modifications != modifications) throw new ConcurrentModificationException();
+	}
+	
+	
+	// stream of the keys in index order, see Records
+	public Stream<String> keys() {
+		return StreamSupport.stream(new Records<>(i -> this.keys[i]), false);
+	}
+	
+	
+	// stream of the records in index order, see Records
+	// entries are immutable, values loaded from a snapshot are deserialised as they are visited
+	public Stream<Map.Entry<String, Object>> entries() {
+		return StreamSupport.stream(new Records<Map.Entry<String, Object>>(i -> new AbstractMap.SimpleImmutableEntry<>(this.keys[i], this.value(i))), false);
+	}
+	
+	
+	// enable instrumentation of table operations
+	// returns the metrics instance, which can be registered with JMX
+	public TableMetrics enableMetrics() {
+		if (this.metrics == null) this.metrics = new TableMetrics();
+		return this.metrics;
+	}
+	
+	
+	// disable instrumentation of table operations
+	public void disableMetrics() {
+		if (this.metrics != null) this.metrics.unregister();
+		this.metrics = null;
+	}
+	
+	
+	// get the metrics instance, or null if metrics are disabled
+	public TableMetrics metrics() {
+		return this.metrics;
+	}
+	
+	
+	// enable a cache of up to size key to index mappings in front of the network
+	// returns the cache, which reports its hit rate
+	public SlotCache enableCache(int size) {
+		if (this.cache == null || this.cache.capacity != size) this.cache = new SlotCache(size);
+		return this.cache;
+	}
+	
+	
+	// disable the key to index cache
+	public void disableCache() {
+		this.cache = null;
+	}
+	
+	
+	// get the key to index cache, or null if the cache is disabled
+	public SlotCache cache() {
+		return this.cache;
+	}
+	
+	
+	// set the number of top scoring indices compared on lookup, 1 by default
+	// 
+	// with k > 1 the network is only trained until every key is within the
+	// top k outputs of its prediction, which trades up to k key comparisons
+	// per lookup for fewer training steps per insert, the relaxed objective
+	// applies from the next update
+	// 
+	// a larger k applies to lookups at once, a smaller k only once the next
+	// update has trained the network for it, since until then keys may only
+	// be within the top k outputs trained for before
+	public void setProbes(int k) {
+		if (k < 1) throw new IllegalArgumentException("Probes cannot be less than 1");
+		this.trainProbes = Math.min(k, this.size);
+		this.probes = Math.max(this.probes, this.trainProbes);
+	}
+	
+	
+	// get the number of top scoring indices compared on lookup, which is
+	// saved with the network
+	public int probes() {
+		return this.probes;
+	}
+	
+	
+	// probes the next update trains for, see setProbes
+	int trainProbes() {
+		return this.trainProbes;
+	}
+	
+	
+	// prune the smallest sparsity fraction of the network weights for lookups
+	// 
+	// returns true if the pruned network maps every key in the table to
+	// its index, in which case it is used for lookups until the next
+	// update, otherwise the dense network is kept
+	public boolean compress(double sparsity) {
+		if (this.trainingPending) return false;
+		SparseNetwork network = SparseNetwork.prune(this.hashfn, sparsity);
+		
+		// verify every record, keys must be found by the same lookup
+		for (int i=0; i < this.records; i++) {
+			Matrix prediction = network.predict(this.keyNorm(this.keys[i]), this.keys[i].length());
+			boolean found = false;
+			for (int index : prediction.topK(this.probes)) {
+				found |= index == i;
+			}
+			if (!found) return false;
+		}
+		
+		// lookups switch to the pruned network
+		this.compressed = network;
+		this.generation++;
+		return true;
+	}
+	
+	
+	// get the pruned network used for lookups, or null if the table is not compressed
+	public SparseNetwork compressed() {
+		return this.compressed;
+	}
+	
+	
+	// train on keys with a margin at or below margin between full steps every
+	// recheck steps, see DenseNetwork.setHardExampleMining
+	// 
+	// updates of large tables where most keys keep their index then cost in
+	// proportion to the keys that are difficult to separate, a recheck of 1
+	// disables mining
+	public void setHardExampleMining(double margin, int recheck) {
+		if (margin < 0 || recheck < 1) throw new IllegalArgumentException("Margin cannot be negative and recheck cannot be less than 1");
+		this.hardMargin = margin;
+		this.recheck = recheck;
+	}
+	
+	
+	// limit the wall clock time of each update, a timeout of 0 removes the limit
+	// 
+	// when the limit is reached the change is kept or rolled back according
+	// to the budget policy, see setBudgetPolicy
+	public void setTrainingLimit(long timeout, TimeUnit unit) {
+		if (timeout < 0) throw new IllegalArgumentException("Timeout cannot be negative");
+		this.trainLimit = unit.toNanos(timeout);
+	}
+	
+	
+	// set what updates do when training stops early, PENDING by default
+	public void setBudgetPolicy(BudgetPolicy policy) {
+		this.policy = policy;
+	}
+	
+	
+	public BudgetPolicy budgetPolicy() {
+		return this.policy;
+	}
+	
+	
+	// stop the running update at its next training step, may be called from any thread
+	public void cancelTraining() {
+		TrainingBudget budget = this.training;
+		if (budget != null) budget.cancel();
+	}
+	
+	
+	// check if training was stopped early and the network does not map every key
+	public boolean pending() {
+		return this.trainingPending;
+	}
+	
+	
+	// continue training left pending when an update stopped early
+	// returns true once the network maps every key, false if training stopped early again
+	public boolean resume() {
+		if (!this.trainingPending) return true;
+		if (!this.retrain()) return false;
+		this.generation++;
+		return true;
+	}
+	
+	
+	// generation of the hash function, incremented whenever indices may change
+	public long generation() {
+		return this.generation;
+	}
+	
+	
+	// hash function, the returned network is trained in place by updates
+	DenseNetwork network() {
+		return this.hashfn;
+	}
+	
+	
+	// replace the hash function with a network trained elsewhere
+	// the network must map the records of this table as they are now
+	void replaceNetwork(DenseNetwork network, long generation) {
+		this.replaceNetwork(network, generation, this.probes, this.trainProbes);
+	}
+	
+	
+	// replace the hash function with a network trained elsewhere for the top probes outputs
+	void replaceNetwork(DenseNetwork network, long generation, int probes, int trainProbes) {
+		this.hashfn = network;
+		this.generation = generation;
+		this.probes = probes;
+		this.trainProbes = trainProbes;
+		this.compressed = null;
+	}
+	
+	
 	// update the hash function
-	private void update() {
+	void update() {
+		this.update(null);
+	}
+	
+	
+	// leave training pending for records inserted without updating the hash function
+	// lookups use linear search until resume
+	void deferUpdate() {
+		this.generation++;
+		this.compressed = null;
+		this.trainingPending = true;
+	}
+	
+	
+	// update the hash function, rolling back to checkpoint if training stops early
+	// without a checkpoint the change is kept and training is left pending
+	private void update(Checkpoint checkpoint) {
+		this.generation++;
+		this.compressed = null;
+		if (this.retrain()) return;
+		if (checkpoint == null) {
+			this.trainingPending = true;
+			return;
+		}
+		this.restore(checkpoint);
+		throw new CancellationException("Training budget exceeded, the change was rolled back.");
+	}
+	
+	
+	// train the hash function, returns false if training stopped early
+	private boolean retrain() {
+		if (this.metrics == null) return this.train() >= 0;
+		long time = this.metrics.startTime();
+		long bytes = this.metrics.startBytes();
+		this.metrics.retrain();
+		try {
+			int steps = this.train();
+			if (steps >= 0) {
+				this.metrics.steps(steps);
+			} else {
+				this.metrics.budgetExceeded();
+			}
+			return steps >= 0;
+		} finally {
+			this.metrics.record(TableMetrics.UPDATE, time, bytes);
+		}
+	}
+	
+	
+	// returns the number of steps taken, or -1 if the training budget ran out
+	private int train() {
 		
-		// setup target
+		// setup target, each key is labelled with its index
 		Matrix[] target_x = new Matrix[this.records];
-		Matrix[] target_y = new Matrix[this.records];
+		int[] target_labels = new int[this.records];
 		for (int i=0; i < this.records; i++) {
-			target_x[i] = this.keyNorm(this.keys[i]);
-			target_y[i] = this.keyLabel(i);
+			if (this.encoded[i] == null) this.encoded[i] = this.keyNorm(this.keys[i]);
+			target_x[i] = this.encoded[i];
+			target_labels[i] = i;
 		}
 		
 		// fit network to target
@@ -181,30 +978,116 @@ public class NNHashTable {
 		// value results in oscillation around the minimum then buffer_steps can be 
 		// increased to train the model for longer.
 		// 
-		this.hashfn.fit(target_x, target_y, 1.0, this.maxSteps, this.bufferSteps, this.eta);
+		// top_k = this.trainProbes
+		// every key must be within the top probes outputs of its prediction,
+		// lookups compare keys at each of those indices once training succeeds
+		// 
+		// budget
+		// the update limit, or no limit, and cancelTraining
+		// 
+		// hard example mining is set on the network before every fit since
+		// networks are replaced by replication and rollback
+		// 
+		this.hashfn.setHardExampleMining(this.hardMargin, this.recheck);
+		TrainingBudget budget = new TrainingBudget(this.trainLimit, TimeUnit.NANOSECONDS);
+		this.training = budget;
+		try {
+			int steps = this.hashfn.fit(target_x, target_labels, 1.0, this.maxSteps, this.bufferSteps, this.eta, this.trainProbes, budget);
+			this.trainingPending = false;
+			this.probes = this.trainProbes;
+			return steps;
+		} catch (IllegalStateException e) {
+			if (!budget.expired()) throw e;
+			return -1;
+		} finally {
+			this.training = null;
+		}
+	}
+	
+	
+	// state to restore if an update stops early, null unless the policy is ROLLBACK
+	private Checkpoint checkpoint() {
+		if (this.policy != BudgetPolicy.ROLLBACK) return null;
+		return new Checkpoint(this.keys.clone(), this.values.clone(), this.records, this.minChar, this.maxChar, this.hashfn.copy(), this.trainingPending);
+	}
+	
+	
+	// restore the records and network of a checkpoint
+	private void restore(Checkpoint checkpoint) {
+		this.keys = checkpoint.keys;
+		this.values = checkpoint.values;
+		this.records = checkpoint.records;
+		this.modifications++;
+		this.minChar = checkpoint.minChar;
+		this.maxChar = checkpoint.maxChar;
+		this.hashfn = checkpoint.hashfn;
+		this.trainingPending = checkpoint.trainingPending;
+		this.encoded = new Matrix[this.size];
+		this.rebuildFilter();
+		this.generation++;
 	}
 	
 	
 	// map key to index
 	private int hash(String key) {
+		if (this.metrics == null) return this.index(key);
+		long time = this.metrics.startTime();
+		long bytes = this.metrics.startBytes();
+		try {
+			return this.index(key);
+		} finally {
+			this.metrics.record(TableMetrics.HASH, time, bytes);
+		}
+	}
+	private int index(String key) {
 		
 		// handle invalid keys
 		this.throwInvalidKey(key);
 		
+		// the network does not map every key until pending training completes
+		// absent keys are compared against the first record
+		if (this.trainingPending) return Math.max(this.indexOf(key), 0);
+		
+		// check cached index for the current network
+		if (this.cache != null) {
+			int index = this.cache.get(key, this.generation);
+			if (index >= 0) return index;
+		}
+		
 		// string key -> normalised key -> prediction -> max index
-		return this.hashfn.predict(this.keyNorm(key)).max()[0];
+		// when probing, the first of the top indices holding the key
+		Matrix x = this.keyNorm(key);
+		Matrix prediction = (this.compressed == null) ? this.hashfn.predict(x, key.length()) : this.compressed.predict(x, key.length());
+		int index = (this.probes == 1) ? prediction.max()[0] : this.probeTopK(key, prediction);
+		if (this.cache != null) this.cache.put(key, index, this.generation);
+		return index;
 	}
 	
 	
-	// convert key to column vector of normalised character values
-	private Matrix keyNorm(String key) {
-		return Encoding.stringNorm(key, this.keyLimit, this.minChar, this.maxChar);
+	// index among the top probes outputs that holds key, or the max index if none do
+	private int probeTopK(String key, Matrix prediction) {
+		int[] candidates = prediction.topK(this.probes);
+		for (int index : candidates) {
+			if (key.equals(this.keys[index])) return index;
+		}
+		return candidates[0];
 	}
 	
 	
-	// convert index to one hot encoding
-	private Matrix keyLabel(int index) {
-		return Encoding.oneHot(index, this.size);
+	// value at index, deserialising values loaded from a snapshot
+	private Object value(int index) {
+		Object value = this.values[index];
+		if (value instanceof TableSnapshot.LazyValue) {
+			value = ((TableSnapshot.LazyValue)value).materialise();
+			this.values[index] = value;
+		}
+		return value;
+	}
+	
+	
+	// convert key to column vector of normalised character values
+	private Matrix keyNorm(String key) {
+		return Encoding.stringNorm(key, this.keyLimit, this.minChar, this.maxChar);
 	}
 	
 	
@@ -221,4 +1104,124 @@ public class NNHashTable {
 					+key.length()+") is greater than the maximum key length ("+this.keyLimit+")");
 		}
 	}
+	
+	
+	// throw an exception if the network does not map every key
+	private void throwTrainingPending() {
+		if (this.trainingPending) throw new IllegalStateException("Training is pending, resume training before saving the table");
+	}
+	
+	
+	// what an update does when training stops early
+	public enum BudgetPolicy {
+		
+		// keep the change and the partially trained network, lookups use a
+		// linear search until resume or the next update completes training
+		PENDING,
+		
+		// restore the records and network from before the change and throw
+		// a CancellationException, costs a copy of the table per update
+		ROLLBACK
+	}
+	
+	
+	// spliterator over a range of the parallel arrays
+	// 
+	// the range is bound to the records when traversal or splitting starts
+	// and splits in half, every element checks that no records were inserted
+	// or deleted since then
+	private final class Records<T> implements Spliterator<T> {
+		
+		private final IntFunction<T> element;
+		private int index;
+		private int fence;
+		private int modifications;
+		
+		Records(IntFunction<T> element) {
+			this(element, 0, -1, 0);
+		}
+		
+		private Records(IntFunction<T> element, int index, int fence, int modifications) {
+			this.element = element;
+			this.index = index;
+			this.fence = fence;
+			this.modifications = modifications;
+		}
+		
+		
+		// end of the range, bound on first use
+		private int fence() {
+			if (this.fence < 0) {
+				this.fence = NNHashTable.this.records;
+				this.modifications = NNHashTable.this.modifications;
+			}
+			return this.fence;
+		}
+		
+		
+		private void checkModifications() {
+			if (NNHashTable.this.modifications != this.modifications) throw new ConcurrentModificationException();
+		}
+		
+		
+		public Spliterator<T> trySplit() {
+			int fence = this.fence();
+			int mid = (this.index + fence) >>> 1;
+			if (mid <= this.index) return null;
+			Records<T> prefix = new Records<>(this.element, this.index, mid, this.modifications);
+			this.index = mid;
+			return prefix;
+		}
+		
+		
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (this.index >= this.fence()) return false;
+			this.checkModifications();
+			action.accept(this.element.apply(this.index++));
+			return true;
+		}
+		
+		
+		public void forEachRemaining(Consumer<? super T> action) {
+			int fence = this.fence();
+			while (this.index < fence) {
+				this.checkModifications();
+				action.accept(this.element.apply(this.index++));
+			}
+			this.checkModifications();
+		}
+		
+		
+		public long estimateSize() {
+			return this.fence() - this.index;
+		}
+		
+		
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.DISTINCT | Spliterator.NONNULL;
+		}
+	}
+	
+	
+	// records and network before a change
+	private static final class Checkpoint {
+		
+		final String[] keys;
+		final Object[] values;
+		final int records;
+		final int minChar;
+		final int maxChar;
+		final DenseNetwork hashfn;
+		final boolean trainingPending;
+		
+		Checkpoint(String[] keys, Object[] values, int records, int minChar, int maxChar, DenseNetwork hashfn, boolean trainingPending) {
+			this.keys = keys;
+			this.values = values;
+			this.records = records;
+			this.minChar = minChar;
+			this.maxChar = maxChar;
+			this.hashfn = hashfn;
+			this.trainingPending = trainingPending;
+		}
+	}
 }
@@ -0,0 +1,213 @@
+package htable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import htable.network.DenseNetwork;
+import htable.util.Matrix;
+
+// Read only copy of a ReplicationPrimary table.
+// 
+// The replica starts from the snapshot sent by the primary when it
+// connects, then applies the record changes it receives. Changes are
+// held until their commit arrives and are applied together with the
+// network in the commit, so reads always see records and a network
+// from the same generation and the replica never trains.
+// 
+// Reads keep serving the latest generation received if the primary
+// disconnects.
+// 
+public class Replica implements Closeable {
+	
+	// connection
+	private final Socket socket;
+	private final DataInputStream in;
+	private volatile boolean connected;
+	
+	// table, guarded by this instance
+	private final NNHashTable table;
+	
+	public Replica(InetSocketAddress primary) throws IOException {
+		this.socket = new Socket();
+		this.socket.connect(primary);
+		this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), 1 << 16));
+		
+		// initial snapshot
+		if (this.in.readByte() != ReplicationPrimary.SYNC) throw new IOException("Expected a snapshot from "+primary);
+		long generation = this.in.readLong();
+		byte[] snapshot = new byte[this.in.readInt()];
+		this.in.readFully(snapshot);
+		this.table = TableSnapshot.read(ByteBuffer.wrap(snapshot), "snapshot from "+primary);
+		this.table.replaceNetwork(this.table.network(), generation);
+		this.connected = true;
+		
+		// apply changes in the background
+		Thread receiver = new Thread(this::receive, "replica-"+primary);
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+	
+	
+	// get value from table by key
+	public synchronized Object get(String key) {
+		return this.table.get(key);
+	}
+	
+	
+	// check if the table holds a record for key, never throws
+	public synchronized boolean containsKey(String key) {
+		return this.table.containsKey(key);
+	}
+	
+	
+	// get value from table by key, or defaultValue if the key is not found
+	public synchronized Object getOrDefault(String key, Object defaultValue) {
+		return this.table.getOrDefault(key, defaultValue);
+	}
+	
+	
+	// get the number of records in the table
+	public synchronized int totalRecords() {
+		return this.table.totalRecords();
+	}
+	
+	
+	// latest generation received from the primary
+	public synchronized long generation() {
+		return this.table.generation();
+	}
+	
+	
+	// number of top scoring indices compared on lookup, as trained by the primary
+	public synchronized int probes() {
+		return this.table.probes();
+	}
+	
+	
+	// check if the replica is receiving changes
+	public boolean connected() {
+		return this.connected;
+	}
+	
+	
+	// wait until the replica has received at least generation
+	// returns false if the timeout passed or the primary disconnected first
+	public synchronized boolean awaitGeneration(long generation, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (this.table.generation() < generation) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0 || !this.connected) return false;
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+	
+	
+	// disconnect from the primary, reads continue at the latest generation
+	public void close() throws IOException {
+		this.socket.close();
+	}
+	
+	
+	// apply committed changes until disconnected
+	private void receive() {
+		List<Object[]> pending = new ArrayList<>();
+		try {
+			while (true) {
+				byte op = this.in.readByte();
+				switch (op) {
+				case ReplicationPrimary.PUT:
+				case ReplicationPrimary.DELETE:
+					String key = this.readKey();
+					Object value = (op == ReplicationPrimary.PUT) ? this.readValue() : null;
+					pending.add(new Object[] {op, key, value});
+					break;
+				case ReplicationPrimary.COMMIT:
+					long generation = this.in.readLong();
+					boolean retrained = this.in.readBoolean();
+					int probes = retrained ? this.in.readInt() : 0;
+					int trainProbes = retrained ? this.in.readInt() : 0;
+					DenseNetwork network = retrained ? this.readNetwork() : null;
+					this.commit(pending, network, probes, trainProbes, generation);
+					pending.clear();
+					break;
+				default:
+					throw new IOException("Unknown replication message "+op);
+				}
+			}
+		} catch (IOException e) {
+			if (!this.socket.isClosed()) System.err.println("Warning: replica disconnected, "+e.getMessage());
+		} finally {
+			this.connected = false;
+			synchronized (this) {
+				this.notifyAll();
+			}
+		}
+	}
+	
+	
+	// apply changes and the network of a commit together, with the probes it was trained for
+	private synchronized void commit(List<Object[]> changes, DenseNetwork network, int probes, int trainProbes, long generation) {
+		for (Object[] change : changes) {
+			if ((byte)change[0] == ReplicationPrimary.PUT) {
+				this.table.insertRecord((String)change[1], change[2]);
+			} else {
+				this.table.removeRecord((String)change[1]);
+			}
+		}
+		if (network == null) {
+			this.table.replaceNetwork(this.table.network(), generation);
+		} else {
+			this.table.replaceNetwork(network, generation, probes, trainProbes);
+		}
+		this.notifyAll();
+	}
+	
+	
+	private String readKey() throws IOException {
+		byte[] key = new byte[this.in.readInt()];
+		this.in.readFully(key);
+		return new String(key, StandardCharsets.UTF_8);
+	}
+	
+	
+	// value deserialised on first lookup, as for snapshots
+	private Object readValue() throws IOException {
+		int length = this.in.readInt();
+		if (length < 0) return null;
+		byte[] value = new byte[length];
+		this.in.readFully(value);
+		return new TableSnapshot.LazyValue(ByteBuffer.wrap(value), 0, length);
+	}
+	
+	
+	private DenseNetwork readNetwork() throws IOException {
+		int depth = this.in.readInt();
+		Matrix[] weights = new Matrix[depth];
+		Matrix[] biases = new Matrix[depth];
+		for (int l=0; l < depth; l++) {
+			int height = this.in.readInt();
+			int width = this.in.readInt();
+			weights[l] = new Matrix(height, width);
+			biases[l] = new Matrix(height, 1);
+			for (int i=0; i < height; i++) {
+				for (int j=0; j < width; j++) {
+					weights[l].set(i, j, this.in.readDouble());
+				}
+			}
+			for (int i=0; i < height; i++) {
+				biases[l].set(i, 0, this.in.readDouble());
+			}
+		}
+		return new DenseNetwork(weights, biases);
+	}
+}
@@ -0,0 +1,356 @@
+package htable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import htable.network.DenseNetwork;
+import htable.util.Matrix;
+
+// NNHashTable that streams its changes to read replicas.
+// 
+// Replicas connect over TCP and first receive a snapshot of the table
+// and its trained network. After that every successful put and delete
+// is sent as the record change followed by a commit. When the change
+// retrained the network the commit carries the new weights, so
+// replicas apply records and adopt the network without training.
+// 
+// Changes made while training is pending, see NNHashTable.setBudgetPolicy,
+// are sent without a commit so replicas keep serving the last converged
+// generation. The commit follows with the next update that converges or
+// with resume.
+// 
+// Weights are sent as full blobs, since gradient descent updates every
+// weight a delta would be the same size as the network.
+// 
+// Operations are serialised on this instance. Every replica has its own
+// queue and sender thread, so a slow replica does not block writes.
+// 
+// Stream, big endian:
+// 
+//   SYNC     byte 1, long generation, int length, snapshot
+//   PUT      byte 2, int keyLength, UTF-8 key, int valueLength,
+//            java serialised value (valueLength -1 for null values)
+//   DELETE   byte 3, int keyLength, UTF-8 key
+//   COMMIT   byte 4, long generation, byte hasNetwork, and if it has
+//            a network int probes, int trainProbes, int depth then
+//            for each layer int height, int width, weights (row major)
+//            and biases as doubles
+// 
+public class ReplicationPrimary implements Closeable {
+	
+	// messages
+	static final byte SYNC = 1;
+	static final byte PUT = 2;
+	static final byte DELETE = 3;
+	static final byte COMMIT = 4;
+	
+	// table
+	private final NNHashTable table;
+	
+	// generation of the network last sent to the replicas
+	private long committed;
+	
+	// replicas
+	private final ServerSocket server;
+	private final List<Follower> followers;
+	private volatile boolean open;
+	
+	public ReplicationPrimary(NNHashTable table, InetSocketAddress address) throws IOException {
+		this.table = table;
+		this.committed = table.generation();
+		this.followers = new CopyOnWriteArrayList<>();
+		this.server = new ServerSocket();
+		this.server.bind(address);
+		this.open = true;
+		
+		// accept replicas
+		Thread acceptor = new Thread(this::accept, "replication-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	
+	// constructor for replicas on the same host, port 0 chooses a free port
+	public ReplicationPrimary(NNHashTable table, int port) throws IOException {
+		this(table, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+	
+	
+	// address replicas connect to
+	public InetSocketAddress address() {
+		return (InetSocketAddress)this.server.getLocalSocketAddress();
+	}
+	
+	
+	// insert record to table and send it to the replicas
+	public void put(String key, Object value) throws IOException {
+		
+		// encode the value before changing the table
+		byte[] bytes = TableSnapshot.serialise(value);
+		synchronized (this) {
+			try {
+				this.table.put(key, value);
+			} catch (CancellationException e) {
+				
+				// the change was rolled back, nothing to send
+				throw e;
+			} catch (IllegalStateException e) {
+				
+				// the record is inserted even if training did not converge
+				this.publish(PUT, key, bytes);
+				throw e;
+			}
+			this.publish(PUT, key, bytes);
+		}
+	}
+	
+	
+	// get value from table by key
+	public synchronized Object get(String key) {
+		return this.table.get(key);
+	}
+	
+	
+	// delete record from table by key and send the deletion to the replicas
+	public synchronized void delete(String key) {
+		try {
+			this.table.delete(key);
+		} catch (CancellationException e) {
+			
+			// the change was rolled back, nothing to send
+			throw e;
+		} catch (IllegalStateException e) {
+			
+			// the record is deleted even if training did not converge
+			this.publish(DELETE, key, null);
+			throw e;
+		}
+		this.publish(DELETE, key, null);
+	}
+	
+	
+	// continue training left pending on the table and commit the changes held back from the replicas
+	// returns true once the network maps every key, false if training stopped early again
+	public synchronized boolean resume() {
+		if (!this.table.resume()) return false;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			this.commit(new DataOutputStream(bytes));
+			this.send(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return true;
+	}
+	
+	
+	// check if training is pending and changes are held back from the replicas
+	public synchronized boolean pending() {
+		return this.table.pending();
+	}
+	
+	
+	// get the number of records in the table
+	public synchronized int totalRecords() {
+		return this.table.totalRecords();
+	}
+	
+	
+	// generation of the hash function, replicas report the latest one they received
+	public synchronized long generation() {
+		return this.table.generation();
+	}
+	
+	
+	// number of connected replicas
+	public int replicas() {
+		return this.followers.size();
+	}
+	
+	
+	// stop accepting replicas and disconnect the connected ones
+	public void close() throws IOException {
+		this.open = false;
+		this.server.close();
+		for (Follower follower : this.followers) {
+			follower.close();
+		}
+	}
+	
+	
+	// accept replicas until closed, each starts from a snapshot
+	private void accept() {
+		while (this.open) {
+			Socket socket;
+			try {
+				socket = this.server.accept();
+			} catch (IOException e) {
+				if (this.open) System.err.println("Warning: stopped accepting replicas, "+e.getMessage());
+				return;
+			}
+			try {
+				socket.setTcpNoDelay(true);
+				Follower follower = new Follower(socket);
+				synchronized (this) {
+					follower.send(this.sync());
+					this.followers.add(follower);
+				}
+				follower.start();
+			} catch (IOException | IllegalStateException e) {
+				
+				// tables with pending training cannot be snapshot
+				System.err.println("Warning: failed to sync replica, "+e.getMessage());
+				try {
+					socket.close();
+				} catch (IOException ignored) {
+					// already failed
+				}
+			}
+		}
+	}
+	
+	
+	// snapshot message of the current table
+	private byte[] sync() throws IOException {
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		this.table.save(snapshot);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(snapshot.size() + 13);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(SYNC);
+		out.writeLong(this.table.generation());
+		out.writeInt(snapshot.size());
+		snapshot.writeTo(out);
+		return bytes.toByteArray();
+	}
+	
+	
+	// send a record change and its commit to every replica
+	// the commit is held back while training is pending
+	private void publish(byte op, String key, byte[] value) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			
+			// record
+			byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+			out.writeByte(op);
+			out.writeInt(keyBytes.length);
+			out.write(keyBytes);
+			if (op == PUT) {
+				out.writeInt((value == null) ? -1 : value.length);
+				if (value != null) out.write(value);
+			}
+			
+			// commit
+			if (!this.table.pending()) this.commit(out);
+			
+			this.send(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	
+	// write a commit of the changes sent since the last one
+	// the commit carries the network if it was retrained since the last commit
+	private void commit(DataOutputStream out) throws IOException {
+		boolean retrained = this.table.generation() != this.committed;
+		out.writeByte(COMMIT);
+		out.writeLong(this.table.generation());
+		out.writeBoolean(retrained);
+		if (retrained) {
+			out.writeInt(this.table.probes());
+			out.writeInt(this.table.trainProbes());
+			writeNetwork(out, this.table.network());
+		}
+		this.committed = this.table.generation();
+	}
+	
+	
+	private void send(byte[] message) {
+		for (Follower follower : this.followers) {
+			follower.send(message);
+		}
+	}
+	
+	
+	private static void writeNetwork(DataOutputStream out, DenseNetwork network) throws IOException {
+		out.writeInt(network.depth());
+		for (int l=0; l < network.depth(); l++) {
+			Matrix w = network.weights(l);
+			Matrix b = network.biases(l);
+			out.writeInt(w.height);
+			out.writeInt(w.width);
+			for (int i=0; i < w.height; i++) {
+				for (int j=0; j < w.width; j++) {
+					out.writeDouble(w.get(i, j));
+				}
+			}
+			for (int i=0; i < b.height; i++) {
+				out.writeDouble(b.get(i, 0));
+			}
+		}
+	}
+	
+	
+	// connected replica with its own send queue
+	private final class Follower {
+		
+		private final Socket socket;
+		private final BlockingQueue<byte[]> queue;
+		
+		Follower(Socket socket) {
+			this.socket = socket;
+			this.queue = new LinkedBlockingQueue<>();
+		}
+		
+		
+		void start() {
+			Thread sender = new Thread(this::run, "replication-send-"+this.socket.getRemoteSocketAddress());
+			sender.setDaemon(true);
+			sender.start();
+		}
+		
+		
+		void send(byte[] message) {
+			this.queue.add(message);
+		}
+		
+		
+		void close() throws IOException {
+			this.socket.close();
+		}
+		
+		
+		// write queued messages, flushing when the queue is empty
+		private void run() {
+			try (this.socket) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), 1 << 16));
+				while (ReplicationPrimary.this.open) {
+					out.write(this.queue.take());
+					if (this.queue.isEmpty()) out.flush();
+				}
+			} catch (IOException e) {
+				if (ReplicationPrimary.this.open) System.err.println("Warning: disconnected replica, "+e.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				ReplicationPrimary.this.followers.remove(this);
+			}
+		}
+	}
+}
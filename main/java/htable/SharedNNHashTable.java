@@ -0,0 +1,235 @@
+package htable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import htable.network.Activations;
+import htable.util.Matrix;
+
+// Read only table served directly from a memory mapped snapshot.
+// 
+// Unlike NNHashTable.load, the network weights, keys and values are
+// never copied to the heap. Lookups run the forward pass over the mapped
+// weights and compare keys against the mapped UTF-8 bytes, so processes
+// on the same host that open the same snapshot share one copy of the
+// table in the page cache and start without reading the file.
+// 
+// Writers publish a new generation with publish, which replaces the
+// file atomically. Readers call refresh to map the replacement, lookups
+// in progress finish on the mapping they started with and the previous
+// mapping is released once it is no longer referenced.
+// 
+// Values are deserialised on every lookup since nothing is kept on the
+// heap. Lookups are thread safe.
+// 
+public class SharedNNHashTable {
+	
+	private final Path file;
+	private volatile Mapping mapping;
+	private volatile long generation;
+	
+	private SharedNNHashTable(Path file, Mapping mapping) {
+		this.file = file;
+		this.mapping = mapping;
+	}
+	
+	
+	// map a snapshot written by NNHashTable.save or publish
+	public static SharedNNHashTable open(Path file) throws IOException {
+		return new SharedNNHashTable(file, map(file));
+	}
+	
+	
+	// write a table to file for shared readers, replacing the file atomically
+	public static void publish(NNHashTable table, Path file) throws IOException {
+		table.save(file);
+	}
+	
+	
+	// map the file again if it was replaced since it was last mapped
+	// returns true if a new generation was mapped
+	public synchronized boolean refresh() throws IOException {
+		if (fileKey(this.file).equals(this.mapping.fileKey)) return false;
+		this.mapping = map(this.file);
+		this.generation++;
+		return true;
+	}
+	
+	
+	// number of times a replaced file was mapped
+	public long generation() {
+		return this.generation;
+	}
+	
+	
+	// get value from table by key
+	public Object get(String key) {
+		Mapping mapping = this.mapping;
+		int index = mapping.locate(key);
+		if (index < 0) throw new ArrayIndexOutOfBoundsException("Could not find "+key);
+		return mapping.value(index);
+	}
+	
+	
+	// check if the table holds a record for key, never throws
+	public boolean containsKey(String key) {
+		return this.mapping.locate(key) >= 0;
+	}
+	
+	
+	// get value from table by key, or defaultValue if the key is not found
+	// never throws for absent or invalid keys
+	public Object getOrDefault(String key, Object defaultValue) {
+		Mapping mapping = this.mapping;
+		int index = mapping.locate(key);
+		return (index < 0) ? defaultValue : mapping.value(index);
+	}
+	
+	
+	// get the number of records in the table
+	public int totalRecords() {
+		return this.mapping.records;
+	}
+	
+	
+	// identity of the file at path, which changes when the file is replaced
+	private static Object fileKey(Path file) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		Object key = attributes.fileKey();
+		return (key != null) ? key : attributes.lastModifiedTime()+":"+attributes.size();
+	}
+	
+	
+	private static Mapping map(Path file) throws IOException {
+		Object fileKey = fileKey(file);
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) throw new IOException("Snapshot "+file+" is larger than 2GB");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		return new Mapping(buffer, TableSnapshot.layout(buffer, file.toString()), fileKey);
+	}
+	
+	
+	// views of one mapped snapshot
+	private static final class Mapping {
+		
+		private final ByteBuffer buffer;
+		private final Object fileKey;
+		
+		// header
+		private final int keyLimit;
+		private final int minChar;
+		private final int maxChar;
+		private final int records;
+		private final int probes;
+		private final int[] layers;
+		
+		// network parameters and record index over the mapping
+		private final DoubleBuffer[] weights;
+		private final DoubleBuffer[] biases;
+		private final IntBuffer index;
+		
+		Mapping(ByteBuffer buffer, TableSnapshot.Layout layout, Object fileKey) {
+			this.buffer = buffer;
+			this.fileKey = fileKey;
+			this.keyLimit = layout.keyLimit;
+			this.minChar = layout.minChar;
+			this.maxChar = layout.maxChar;
+			this.records = layout.records;
+			this.probes = layout.probes;
+			this.layers = layout.layers;
+			
+			// each layer is weights (row major) then biases
+			int depth = this.layers.length-1;
+			this.weights = new DoubleBuffer[depth];
+			this.biases = new DoubleBuffer[depth];
+			int offset = layout.network;
+			for (int l=0; l < depth; l++) {
+				int size = this.layers[l+1] * this.layers[l];
+				this.weights[l] = buffer.slice(offset, 8 * size).asDoubleBuffer();
+				offset += 8 * size;
+				this.biases[l] = buffer.slice(offset, 8 * this.layers[l+1]).asDoubleBuffer();
+				offset += 8 * this.layers[l+1];
+			}
+			this.index = buffer.slice(layout.index, 16 * this.records).asIntBuffer();
+		}
+		
+		
+		// index of key, or -1 if the key is invalid or not found
+		// the same lookup as NNHashTable, probing the top outputs when probes > 1
+		int locate(String key) {
+			
+			// handle invalid keys and table empty
+			if (key == null || key.isEmpty() || key.length() > this.keyLimit || this.records == 0) return -1;
+			
+			// string key -> normalised key -> prediction -> max index
+			Matrix prediction = this.predict(key);
+			byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+			if (this.probes == 1) {
+				int index = prediction.max()[0];
+				return this.keyEquals(index, bytes) ? index : -1;
+			}
+			for (int index : prediction.topK(this.probes)) {
+				if (this.keyEquals(index, bytes)) return index;
+			}
+			return -1;
+		}
+		
+		
+		// forward pass over the mapped parameters, the first layer over the key length only
+		private Matrix predict(String key) {
+			double[] a = new double[key.length()];
+			for (int i=0; i < key.length(); i++) {
+				a[i] = (key.charAt(i) - this.minChar) / (double)(this.maxChar - this.minChar + 1);
+			}
+			for (int l=0; l < this.layers.length-1; l++) {
+				int height = this.layers[l+1];
+				int width = this.layers[l];
+				double[] z = new double[height];
+				for (int i=0; i < height; i++) {
+					double sum = 0;
+					for (int j=0; j < a.length; j++) {
+						sum += this.weights[l].get(i * width + j) * a[j];
+					}
+					z[i] = Activations.sigmoid(sum + this.biases[l].get(i));
+				}
+				a = z;
+			}
+			return Matrix.column(a);
+		}
+		
+		
+		// compare the key of a record with UTF-8 bytes
+		private boolean keyEquals(int record, byte[] bytes) {
+			if (record >= this.records) return false;
+			int offset = this.index.get(4 * record);
+			int length = this.index.get(4 * record + 1);
+			if (length != bytes.length) return false;
+			for (int i=0; i < length; i++) {
+				if (this.buffer.get(offset + i) != bytes[i]) return false;
+			}
+			return true;
+		}
+		
+		
+		// deserialise the value of a record
+		Object value(int record) {
+			int offset = this.index.get(4 * record + 2);
+			int length = this.index.get(4 * record + 3);
+			if (length < 0) return null;
+			byte[] bytes = new byte[length];
+			this.buffer.get(offset, bytes);
+			return TableSnapshot.deserialise(bytes);
+		}
+	}
+}
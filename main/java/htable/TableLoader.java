@@ -0,0 +1,226 @@
+package htable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Bulk loader of records from a file into an NNHashTable.
+// 
+// The file is read through a sequence of read only memory mapped
+// windows, so files larger than the heap can be loaded and only the
+// decoded keys and values are kept. Records are inserted without
+// training and the network is trained once after the last record, or
+// after every chunk of records when a chunk size is set.
+// 
+// Two record formats are supported:
+// 
+//   delimited        one record per line, the key and value separated by
+//                    a delimiter, tab by default. The value is the rest of
+//                    the line as a String, lines without a delimiter have
+//                    a null value. Empty lines are skipped
+// 
+//   length prefixed  big endian int keyLength, UTF-8 key, int valueLength
+//                    and the value bytes as a byte[], valueLength -1 for
+//                    null values
+// 
+// Later records for the same key overwrite earlier values, as with put.
+// 
+// Each record is validated before it is inserted. If loading stops at a
+// malformed record or a full table, the records inserted since the last
+// chunk are kept with training pending, see NNHashTable.resume, so they
+// are found by linear search until the network is trained.
+// 
+public class TableLoader {
+	
+	// receiver of loading progress
+	public interface Progress {
+		void report(long bytesRead, long totalBytes, int records);
+	}
+	
+	private final NNHashTable table;
+	private boolean lengthPrefixed;
+	private byte delimiter;
+	private int chunk;
+	private int window;
+	private Progress progress;
+	
+	public TableLoader(NNHashTable table) {
+		this.table = table;
+		this.lengthPrefixed = false;
+		this.delimiter = '\t';
+		this.chunk = 0;
+		this.window = 1 << 26;
+	}
+	
+	
+	// read lines of key, delimiter, value, the delimiter must be an ascii character
+	public TableLoader delimited(char delimiter) {
+		if (delimiter > 127 || delimiter == '\n' || delimiter == '\r') throw new IllegalArgumentException("Delimiter must be an ascii character other than a line break");
+		this.lengthPrefixed = false;
+		this.delimiter = (byte)delimiter;
+		return this;
+	}
+	
+	
+	// read length prefixed records
+	public TableLoader lengthPrefixed() {
+		this.lengthPrefixed = true;
+		return this;
+	}
+	
+	
+	// train after every chunk new records rather than once at the end, 0 to disable
+	public TableLoader chunk(int records) {
+		if (records < 0) throw new IllegalArgumentException("Chunk cannot be less than 0");
+		this.chunk = records;
+		return this;
+	}
+	
+	
+	// report progress after every mapped window and at the end of the file
+	public TableLoader progress(Progress progress) {
+		this.progress = progress;
+		return this;
+	}
+	
+	
+	// size of the mapped windows in bytes, records cannot be larger than a window
+	TableLoader window(int bytes) {
+		this.window = bytes;
+		return this;
+	}
+	
+	
+	// load every record in file into the table and train the network
+	// returns the number of records read, including overwritten keys
+	public int load(Path file) throws IOException {
+		int count = 0;
+		int untrained = 0;
+		boolean complete = false;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long total = channel.size();
+			long position = 0;
+			while (position < total) {
+				
+				// map the next window, starting at the first unread record
+				long length = Math.min(this.window, total - position);
+				boolean last = position + length == total;
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				
+				// insert the complete records in the window
+				int consumed = 0;
+				while (true) {
+					int end = this.lengthPrefixed ? this.nextPrefixed(buffer, consumed) : this.nextLine(buffer, consumed, last);
+					if (end < 0) break;
+					int added = this.lengthPrefixed ? this.insertPrefixed(buffer, consumed, position) : this.insertLine(buffer, consumed, end, position);
+					consumed = end;
+					if (added < 0) continue;
+					count++;
+					
+					// train each chunk
+					if (added == 0) continue;
+					untrained++;
+					if (untrained == this.chunk) {
+						this.table.update();
+						untrained = 0;
+					}
+				}
+				
+				// handle a record that does not fit in a window
+				if (consumed == 0) throw new IOException("Record at "+position+" in "+file+" is incomplete or larger than the window");
+				position += consumed;
+				if (this.progress != null) this.progress.report(position, total, count);
+			}
+			complete = true;
+		} finally {
+			
+			// leave the records inserted before a failure pending
+			if (!complete && untrained > 0) this.table.deferUpdate();
+		}
+		
+		// train the remaining records
+		if (untrained > 0) this.table.update();
+		return count;
+	}
+	
+	
+	// end of the line starting at start, or -1 if the line is not complete
+	// the last line of the file does not need a line break
+	private int nextLine(ByteBuffer buffer, int start, boolean last) {
+		int limit = buffer.limit();
+		if (start >= limit) return -1;
+		for (int i=start; i < limit; i++) {
+			if (buffer.get(i) == '\n') return i+1;
+		}
+		return last ? limit : -1;
+	}
+	
+	
+	// insert the line between start and end
+	// returns 1 if the key is new, 0 if it was overwritten and -1 for empty lines
+	private int insertLine(ByteBuffer buffer, int start, int end, long offset) throws IOException {
+		
+		// trim line break
+		int stop = end;
+		if (stop > start && buffer.get(stop-1) == '\n') stop--;
+		if (stop > start && buffer.get(stop-1) == '\r') stop--;
+		if (stop == start) return -1;
+		
+		// split at the first delimiter
+		int split = start;
+		while (split < stop && buffer.get(split) != this.delimiter) split++;
+		String key = decode(buffer, start, split - start);
+		String value = (split == stop) ? null : decode(buffer, split+1, stop - split - 1);
+		return this.insert(key, value, offset + start);
+	}
+	
+	
+	// end of the length prefixed record starting at start, or -1 if the record is not complete
+	private int nextPrefixed(ByteBuffer buffer, int start) throws IOException {
+		int limit = buffer.limit();
+		if (start + 4 > limit) return -1;
+		int keyLength = buffer.getInt(start);
+		if (keyLength < 0) throw new IOException("Malformed record, negative key length");
+		long valueAt = (long)start + 4 + keyLength;
+		if (valueAt + 4 > limit) return -1;
+		int valueLength = buffer.getInt((int)valueAt);
+		if (valueLength < -1) throw new IOException("Malformed record, negative value length");
+		long end = valueAt + 4 + Math.max(0, valueLength);
+		return (end > limit) ? -1 : (int)end;
+	}
+	
+	
+	// insert the length prefixed record starting at start
+	// returns 1 if the key is new and 0 if it was overwritten
+	private int insertPrefixed(ByteBuffer buffer, int start, long offset) throws IOException {
+		int keyLength = buffer.getInt(start);
+		String key = decode(buffer, start + 4, keyLength);
+		int valueLength = buffer.getInt(start + 4 + keyLength);
+		byte[] value = null;
+		if (valueLength >= 0) {
+			value = new byte[valueLength];
+			buffer.get(start + 8 + keyLength, value);
+		}
+		return this.insert(key, value, offset + start);
+	}
+	
+	
+	// insert a record without training
+	// the table is unchanged if the key is invalid or the table is full
+	private int insert(String key, Object value, long offset) throws IOException {
+		if (key.isEmpty() || key.length() > this.table.keyLimit) throw new IOException("Invalid key \""+key+"\" in record at "+offset);
+		if (this.table.totalRecords() == this.table.size && !this.table.containsRecord(key)) throw new IOException("Could not insert record at "+offset+" because table is full.");
+		return this.table.insertRecord(key, value) ? 1 : 0;
+	}
+	
+	
+	private static String decode(ByteBuffer buffer, int start, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
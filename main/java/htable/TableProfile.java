@@ -0,0 +1,140 @@
+package htable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.random.RandomGenerator;
+import java.util.stream.Collectors;
+
+// Network and training configuration of an NNHashTable, as chosen by
+// TableTuner, with the put latency and model size measured for it.
+// 
+// Profiles are saved as a properties file so a configuration tuned once
+// for a key distribution can build later tables without tuning again.
+// 
+public final class TableProfile {
+	
+	// table shape
+	public final int keyLimit;
+	public final int capacity;
+	
+	// network and training
+	private final int[] hiddenLayers;
+	public final int maxSteps;
+	public final int bufferSteps;
+	public final double eta;
+	public final int probes;
+	
+	// measured on the tuning sample
+	public final long putNanos;
+	public final long parameters;
+	
+	public TableProfile(int keyLimit, int capacity, int[] hiddenLayers, int maxSteps, int bufferSteps, double eta, int probes, long putNanos) {
+		
+		// handle invalid parameters
+		if (keyLimit < 1 || capacity < 1) throw new IllegalArgumentException("Invalid parameters, keyLimit and capacity cannot be less then 1");
+		if (probes < 1) throw new IllegalArgumentException("Probes cannot be less than 1");
+		
+		this.keyLimit = keyLimit;
+		this.capacity = capacity;
+		this.hiddenLayers = hiddenLayers.clone();
+		this.maxSteps = maxSteps;
+		this.bufferSteps = bufferSteps;
+		this.eta = eta;
+		this.probes = probes;
+		this.putNanos = putNanos;
+		this.parameters = parameters(keyLimit, hiddenLayers, capacity);
+	}
+	
+	
+	// hidden layer sizes, empty for a network without hidden layers
+	public int[] hiddenLayers() {
+		return this.hiddenLayers.clone();
+	}
+	
+	
+	// build an empty table with this configuration
+	public NNHashTable build() {
+		return this.build(null);
+	}
+	
+	
+	// build an empty table with this configuration and a specific generator
+	public NNHashTable build(RandomGenerator rng) {
+		NNHashTable table = new NNHashTable(this.keyLimit, this.capacity, this.maxSteps, this.bufferSteps, this.eta, rng, this.hiddenLayers);
+		table.setProbes(this.probes);
+		return table;
+	}
+	
+	
+	// save the profile to a properties file
+	public void save(Path file) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("keyLimit", Integer.toString(this.keyLimit));
+		properties.setProperty("capacity", Integer.toString(this.capacity));
+		properties.setProperty("hiddenLayers", Arrays.stream(this.hiddenLayers).mapToObj(Integer::toString).collect(Collectors.joining(",")));
+		properties.setProperty("maxSteps", Integer.toString(this.maxSteps));
+		properties.setProperty("bufferSteps", Integer.toString(this.bufferSteps));
+		properties.setProperty("eta", Double.toString(this.eta));
+		properties.setProperty("probes", Integer.toString(this.probes));
+		properties.setProperty("putNanos", Long.toString(this.putNanos));
+		properties.setProperty("parameters", Long.toString(this.parameters));
+		try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			properties.store(out, "NNHashTable profile");
+		}
+	}
+	
+	
+	// load a profile from a properties file
+	public static TableProfile load(Path file) throws IOException {
+		Properties properties = new Properties();
+		try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			properties.load(in);
+		}
+		try {
+			String hidden = property(properties, "hiddenLayers", file).trim();
+			return new TableProfile(
+					Integer.parseInt(property(properties, "keyLimit", file)),
+					Integer.parseInt(property(properties, "capacity", file)),
+					hidden.isEmpty() ? new int[0] : Arrays.stream(hidden.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray(),
+					Integer.parseInt(property(properties, "maxSteps", file)),
+					Integer.parseInt(property(properties, "bufferSteps", file)),
+					Double.parseDouble(property(properties, "eta", file)),
+					Integer.parseInt(property(properties, "probes", file)),
+					Long.parseLong(properties.getProperty("putNanos", "0")));
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed profile "+file+", "+e.getMessage(), e);
+		}
+	}
+	
+	
+	public String toString() {
+		return "hiddenLayers="+Arrays.toString(this.hiddenLayers)+", eta="+this.eta+", probes="+this.probes
+				+", maxSteps="+this.maxSteps+", bufferSteps="+this.bufferSteps
+				+", putNanos="+this.putNanos+", parameters="+this.parameters;
+	}
+	
+	
+	// number of weights and biases of a network
+	static long parameters(int keyLimit, int[] hiddenLayers, int capacity) {
+		long parameters = 0;
+		int inputs = keyLimit;
+		for (int layer : hiddenLayers) {
+			parameters += (long)layer * inputs + layer;
+			inputs = layer;
+		}
+		return parameters + (long)capacity * inputs + capacity;
+	}
+	
+	
+	private static String property(Properties properties, String name, Path file) throws IOException {
+		String value = properties.getProperty(name);
+		if (value == null) throw new IOException("Malformed profile "+file+", missing "+name);
+		return value;
+	}
+}
@@ -0,0 +1,322 @@
+package htable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import htable.network.DenseNetwork;
+import htable.util.Matrix;
+
+// Versioned binary snapshot of an NNHashTable.
+// 
+// The snapshot holds the trained network, so a loaded table serves
+// lookups straight away without calling fit. Files are read through a
+// read only memory map, the network and keys are read on load and the
+// values are only deserialised when they are first looked up.
+// 
+// Layout, big endian:
+// 
+//   header   int magic, int version, int keyLimit, int capacity,
+//            int minChar, int maxChar, int records, int maxSteps,
+//            int bufferSteps, double eta, int probes, int depth,
+//            int[depth+1] layers, zero padding to an 8 byte boundary
+//   network  for each layer, weights (row major) then biases as doubles
+//   index    for each record, int keyOffset, int keyLength,
+//            int valueOffset, int valueLength (-1 for null values)
+//   data     UTF-8 keys and java serialised values
+// 
+// Offsets are absolute file positions, which limits snapshots to 2GB.
+// Version 1 snapshots have no probes field and are read with 1 probe.
+// 
+final class TableSnapshot {
+	
+	static final int MAGIC = 0x4E4E4854; // "NNHT"
+	static final int VERSION = 2;
+	
+	private TableSnapshot() {}
+	
+	
+	// write a table to file
+	// the file is replaced atomically so readers never see a partial snapshot
+	static void write(Path file, int keyLimit, int capacity, int minChar, int maxChar,
+			int maxSteps, int bufferSteps, double eta, int probes, DenseNetwork network,
+			String[] keys, Object[] values, int records) throws IOException {
+		
+		// write to a temporary file alongside the target
+		// a failed write removes it so no stale partial file is left behind
+		Path temp = file.resolveSibling(file.getFileName()+".tmp");
+		try {
+			try (OutputStream stream = Files.newOutputStream(temp)) {
+				write(stream, keyLimit, capacity, minChar, maxChar, maxSteps, bufferSteps, eta, probes, network, keys, values, records);
+			}
+			
+			// publish
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+	
+	
+	// write a table to a stream, the stream is flushed but not closed
+	// offsets are relative to the start of the stream
+	static void write(OutputStream stream, int keyLimit, int capacity, int minChar, int maxChar,
+			int maxSteps, int bufferSteps, double eta, int probes, DenseNetwork network,
+			String[] keys, Object[] values, int records) throws IOException {
+		
+		// encode keys and values
+		byte[][] keyBytes = new byte[records][];
+		byte[][] valueBytes = new byte[records][];
+		for (int i=0; i < records; i++) {
+			keyBytes[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+			valueBytes[i] = serialise(values[i]);
+		}
+		
+		// calculate section offsets
+		int depth = network.depth();
+		long header = align(4L * (11 + depth + 1) + 8);
+		long parameters = 0;
+		for (int l=0; l < depth; l++) {
+			Matrix w = network.weights(l);
+			parameters += 8L * ((long)w.height * w.width + w.height);
+		}
+		long index = header + parameters;
+		long data = index + 16L * records;
+		
+		// header
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(keyLimit);
+		out.writeInt(capacity);
+		out.writeInt(minChar);
+		out.writeInt(maxChar);
+		out.writeInt(records);
+		out.writeInt(maxSteps);
+		out.writeInt(bufferSteps);
+		out.writeDouble(eta);
+		out.writeInt(probes);
+		out.writeInt(depth);
+		out.writeInt(network.weights(0).width);
+		for (int l=0; l < depth; l++) {
+			out.writeInt(network.weights(l).height);
+		}
+		while (out.size() < header) out.writeByte(0);
+		
+		// network
+		for (int l=0; l < depth; l++) {
+			writeMatrix(out, network.weights(l));
+			writeMatrix(out, network.biases(l));
+		}
+		
+		// index
+		long offset = data;
+		for (int i=0; i < records; i++) {
+			out.writeInt(checkedOffset(offset));
+			out.writeInt(keyBytes[i].length);
+			offset += keyBytes[i].length;
+			out.writeInt(checkedOffset(offset));
+			out.writeInt((valueBytes[i] == null) ? -1 : valueBytes[i].length);
+			offset += (valueBytes[i] == null) ? 0 : valueBytes[i].length;
+		}
+		
+		// data
+		for (int i=0; i < records; i++) {
+			out.write(keyBytes[i]);
+			if (valueBytes[i] != null) out.write(valueBytes[i]);
+		}
+		out.flush();
+	}
+	
+	
+	// read a table from file
+	static NNHashTable read(Path file) throws IOException {
+		
+		// map file
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) throw new IOException("Snapshot "+file+" is larger than 2GB");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		return read(buffer, file.toString());
+	}
+	
+	
+	// read a table from a buffer holding a snapshot, values keep a reference to the buffer
+	static NNHashTable read(ByteBuffer buffer, String file) throws IOException {
+		
+		// header
+		Layout layout = layout(buffer, file);
+		int depth = layout.layers.length-1;
+		
+		// network
+		Matrix[] weights = new Matrix[depth];
+		Matrix[] biases = new Matrix[depth];
+		DoubleBuffer parameters = buffer.slice(layout.network, layout.index - layout.network).asDoubleBuffer();
+		for (int l=0; l < depth; l++) {
+			weights[l] = Matrix.read(parameters, layout.layers[l+1], layout.layers[l]);
+			biases[l] = Matrix.read(parameters, layout.layers[l+1], 1);
+		}
+		buffer.position(layout.index);
+		
+		// keys and lazy values
+		String[] keys = new String[layout.capacity];
+		Object[] values = new Object[layout.capacity];
+		for (int i=0; i < layout.records; i++) {
+			int keyOffset = buffer.getInt();
+			int keyLength = buffer.getInt();
+			int valueOffset = buffer.getInt();
+			int valueLength = buffer.getInt();
+			byte[] key = new byte[keyLength];
+			buffer.get(keyOffset, key);
+			keys[i] = new String(key, StandardCharsets.UTF_8);
+			values[i] = (valueLength < 0) ? null : new LazyValue(buffer, valueOffset, valueLength);
+		}
+		
+		return new NNHashTable(layout.keyLimit, layout.capacity, layout.maxSteps, layout.bufferSteps, layout.eta, layout.probes,
+				layout.minChar, layout.maxChar, keys, values, layout.records, new DenseNetwork(weights, biases));
+	}
+	
+	
+	// read the header of a snapshot starting at position 0 of buffer
+	static Layout layout(ByteBuffer buffer, String file) throws IOException {
+		ByteBuffer header = buffer.duplicate().position(0);
+		if (header.remaining() < 8 || header.getInt() != MAGIC) throw new IOException(file+" is not a table snapshot");
+		int version = header.getInt();
+		if (version < 1 || version > VERSION) throw new IOException("Unsupported snapshot version "+version+" in "+file);
+		Layout layout = new Layout();
+		layout.keyLimit = header.getInt();
+		layout.capacity = header.getInt();
+		layout.minChar = header.getInt();
+		layout.maxChar = header.getInt();
+		layout.records = header.getInt();
+		layout.maxSteps = header.getInt();
+		layout.bufferSteps = header.getInt();
+		layout.eta = header.getDouble();
+		layout.probes = (version >= 2) ? header.getInt() : 1;
+		int depth = header.getInt();
+		layout.layers = new int[depth+1];
+		for (int l=0; l <= depth; l++) {
+			layout.layers[l] = header.getInt();
+		}
+		
+		// section offsets
+		layout.network = (int)align(header.position());
+		long parameters = 0;
+		for (int l=0; l < depth; l++) {
+			parameters += 8L * ((long)layout.layers[l+1] * layout.layers[l] + layout.layers[l+1]);
+		}
+		layout.index = checkedOffset(layout.network + parameters);
+		return layout;
+	}
+	
+	
+	// header fields and section offsets of a snapshot
+	static final class Layout {
+		int keyLimit;
+		int capacity;
+		int minChar;
+		int maxChar;
+		int records;
+		int maxSteps;
+		int bufferSteps;
+		double eta;
+		int probes;
+		
+		// input size then the size of each layer
+		int[] layers;
+		
+		// absolute positions of the network and index sections
+		int network;
+		int index;
+	}
+	
+	
+	// value stored in a mapped snapshot, deserialised on first use
+	static final class LazyValue {
+		
+		private final ByteBuffer buffer;
+		private final int offset;
+		private final int length;
+		
+		LazyValue(ByteBuffer buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		
+		// serialised form of the value
+		byte[] bytes() {
+			byte[] bytes = new byte[this.length];
+			this.buffer.get(this.offset, bytes);
+			return bytes;
+		}
+		
+		
+		// deserialise the value
+		Object materialise() {
+			return deserialise(this.bytes());
+		}
+	}
+	
+	
+	// java serialised form of a value, or null for null values
+	static byte[] serialise(Object value) throws IOException {
+		if (value == null) return null;
+		if (value instanceof LazyValue) return ((LazyValue)value).bytes();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		}
+		return bytes.toByteArray();
+	}
+	
+	
+	// value from its java serialised form
+	static Object deserialise(byte[] bytes) {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			throw new IllegalStateException("Could not deserialise value", e);
+		}
+	}
+	
+	
+	private static void writeMatrix(DataOutputStream out, Matrix m) throws IOException {
+		for (int i=0; i < m.height; i++) {
+			for (int j=0; j < m.width; j++) {
+				out.writeDouble(m.get(i, j));
+			}
+		}
+	}
+	
+	
+	private static int checkedOffset(long offset) throws IOException {
+		if (offset > Integer.MAX_VALUE) throw new IOException("Snapshot is larger than 2GB");
+		return (int)offset;
+	}
+	
+	
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+}
@@ -0,0 +1,161 @@
+package htable;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Search for the network and training configuration of a new table.
+// 
+// Every combination of the candidate hidden layers, learning rates and
+// probe counts builds a table and puts the sample keys one at a time,
+// measuring the mean put latency. Configurations that fail to converge,
+// exceed the training limit on a put or do not find every sample key
+// afterwards are rejected. Of the remaining configurations the smallest
+// network within the latency budget is chosen, ties going to the
+// faster configuration, or the fastest one if none are within budget.
+// 
+// Candidates are initialised from the same seed so they are compared on
+// the same starting weights, and puts taking more than ten times the
+// latency budget are stopped early. The chosen profile can be saved and
+// reused to build tables without tuning again.
+// 
+//   TableProfile profile = new TableTuner(sample, 20, 1000)
+//           .putBudget(50, TimeUnit.MILLISECONDS)
+//           .tune();
+//   profile.save(Path.of("table.profile"));
+//   NNHashTable table = profile.build();
+// 
+public class TableTuner {
+	
+	private final String[] sample;
+	private final int keyLimit;
+	private final int capacity;
+	private int[][] hiddenLayers;
+	private double[] etas;
+	private int[] probes;
+	private int maxSteps;
+	private int bufferSteps;
+	private long budget;
+	private long seed;
+	
+	public TableTuner(String[] sample, int keyLimit, int capacity) {
+		
+		// handle invalid parameters
+		if (keyLimit < 1 || capacity < 1) throw new IllegalArgumentException("Invalid parameters, keyLimit and capacity cannot be less then 1");
+		if (sample.length == 0 || sample.length > capacity) throw new IllegalArgumentException("Sample must hold between 1 and capacity keys");
+		for (String key : sample) {
+			if (key == null || key.isEmpty() || key.length() > keyLimit) throw new IllegalArgumentException("\""+key+"\" is an invalid key");
+		}
+		
+		this.sample = sample.clone();
+		this.keyLimit = keyLimit;
+		this.capacity = capacity;
+		this.hiddenLayers = new int[][] {{}, {keyLimit}, {2 * keyLimit}};
+		this.etas = new double[] {0.5, 1.0, 2.0};
+		this.probes = new int[] {1, 2};
+		this.maxSteps = 10_000;
+		this.bufferSteps = 0;
+		this.budget = TimeUnit.MILLISECONDS.toNanos(100);
+		this.seed = 42L;
+	}
+	
+	
+	// candidate hidden layer sizes, none, keyLimit and 2*keyLimit by default
+	public TableTuner hiddenLayers(int[]... candidates) {
+		this.hiddenLayers = candidates.clone();
+		return this;
+	}
+	
+	
+	// candidate learning rates, 0.5, 1.0 and 2.0 by default
+	public TableTuner learningRates(double... candidates) {
+		this.etas = candidates.clone();
+		return this;
+	}
+	
+	
+	// candidate probe counts, 1 and 2 by default
+	public TableTuner probes(int... candidates) {
+		this.probes = candidates.clone();
+		return this;
+	}
+	
+	
+	// training parameters shared by every candidate, see NNHashTable
+	public TableTuner training(int maxSteps, int bufferSteps) {
+		this.maxSteps = maxSteps;
+		this.bufferSteps = bufferSteps;
+		return this;
+	}
+	
+	
+	// mean put latency a configuration must stay within, 100ms by default
+	public TableTuner putBudget(long timeout, TimeUnit unit) {
+		if (timeout < 1) throw new IllegalArgumentException("Budget must be positive");
+		this.budget = unit.toNanos(timeout);
+		return this;
+	}
+	
+	
+	// seed for the initial weights of every candidate, 42 by default
+	public TableTuner seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+	
+	
+	// evaluate every candidate and return the chosen configuration
+	public TableProfile tune() {
+		TableProfile best = null;
+		for (int[] hidden : this.hiddenLayers) {
+			for (double eta : this.etas) {
+				for (int k : this.probes) {
+					TableProfile candidate = this.evaluate(hidden, eta, k);
+					if (candidate != null && (best == null || this.better(candidate, best))) best = candidate;
+				}
+			}
+		}
+		
+		// handle no configuration converging
+		if (best == null) throw new IllegalStateException("Warning: no configuration converged on the sample.");
+		
+		return best;
+	}
+	
+	
+	// profile of a configuration with its mean put latency, or null if rejected
+	private TableProfile evaluate(int[] hidden, double eta, int k) {
+		TableProfile profile = new TableProfile(this.keyLimit, this.capacity, hidden, this.maxSteps, this.bufferSteps, eta, k, 0);
+		NNHashTable table = profile.build(new SplittableRandom(this.seed));
+		table.setTrainingLimit(10 * this.budget, TimeUnit.NANOSECONDS);
+		
+		// put sample keys
+		long total = 0;
+		for (String key : this.sample) {
+			long start = System.nanoTime();
+			try {
+				table.put(key, null);
+			} catch (IllegalStateException e) {
+				return null;
+			}
+			total += System.nanoTime() - start;
+			if (table.pending()) return null;
+		}
+		
+		// every key must be found
+		for (String key : this.sample) {
+			if (!table.containsKey(key)) return null;
+		}
+		
+		return new TableProfile(this.keyLimit, this.capacity, hidden, this.maxSteps, this.bufferSteps, eta, k, total / this.sample.length);
+	}
+	
+	
+	// smaller networks within budget, otherwise lower latency
+	private boolean better(TableProfile a, TableProfile b) {
+		boolean aWithin = a.putNanos <= this.budget;
+		boolean bWithin = b.putNanos <= this.budget;
+		if (aWithin != bWithin) return aWithin;
+		if (aWithin && a.parameters != b.parameters) return a.parameters < b.parameters;
+		return a.putNanos < b.putNanos;
+	}
+}
@@ -0,0 +1,271 @@
+package htable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Append only log of put and delete operations.
+// 
+// Each record is framed as int length, int crc32 and a payload of
+// byte op, int keyLength, UTF-8 key, int valueLength and the java
+// serialised value (valueLength -1 for null values and deletes).
+// A torn or corrupt record at the end of the log, left by a crash
+// during a write, is discarded when the log is opened.
+// 
+// Appending returns the log position of the record, which is passed
+// to commit to wait until the record is durable. How commit waits is
+// set by the sync policy:
+// 
+//   ALWAYS    every append is forced to disk before it returns
+//   GROUP     concurrent commits share a single force, the first
+//             waiting thread forces every record appended so far
+//   INTERVAL  a background thread forces the log periodically,
+//             commits return immediately
+//   NEVER     the log is only forced on close, durability is left
+//             to the operating system
+// 
+public class WriteAheadLog implements Closeable {
+	
+	public enum Sync { ALWAYS, GROUP, INTERVAL, NEVER }
+	
+	// operations
+	static final byte PUT = 1;
+	static final byte DELETE = 2;
+	
+	// record framing
+	private static final int FRAME = 8;
+	private static final int MAX_RECORD = 1 << 30;
+	
+	// log file
+	private final FileChannel channel;
+	private final Sync sync;
+	private ScheduledExecutorService flusher;
+	
+	// log positions, written is guarded by this instance
+	private long written;
+	private volatile long durable;
+	private final Object syncLock = new Object();
+	
+	public WriteAheadLog(Path file, Sync sync, long intervalMillis) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.sync = sync;
+		
+		// discard a torn tail and continue appending after the last valid record
+		this.written = this.scan(null);
+		this.channel.truncate(this.written);
+		this.channel.position(this.written);
+		this.durable = this.written;
+		
+		// setup background sync
+		if (sync == Sync.INTERVAL) {
+			this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "wal-sync-"+file.getFileName());
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.flusher.scheduleWithFixedDelay(this::syncQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	
+	// constructor with a 10ms interval for the INTERVAL policy
+	public WriteAheadLog(Path file, Sync sync) throws IOException {
+		this(file, sync, 10);
+	}
+	
+	
+	// append a put, returns the log position to commit
+	public long appendPut(String key, Object value) throws IOException {
+		return this.append(PUT, key, TableSnapshot.serialise(value));
+	}
+	
+	
+	// append a delete, returns the log position to commit
+	public long appendDelete(String key) throws IOException {
+		return this.append(DELETE, key, null);
+	}
+	
+	
+	// wait until the log is durable up to position, according to the sync policy
+	public void commit(long position) throws IOException {
+		if (this.sync != Sync.GROUP || this.durable >= position) return;
+		synchronized (this.syncLock) {
+			
+			// another thread may have forced the log while this one waited
+			if (this.durable >= position) return;
+			this.force();
+		}
+	}
+	
+	
+	// force every appended record to disk
+	public void sync() throws IOException {
+		synchronized (this.syncLock) {
+			this.force();
+		}
+	}
+	
+	
+	// number of bytes in the log
+	public synchronized long size() {
+		return this.written;
+	}
+	
+	
+	// read every record in the log from the start
+	public void replay(Handler handler) throws IOException {
+		this.scan(handler);
+	}
+	
+	
+	// discard every record, called once the records are in a snapshot
+	public void truncate() throws IOException {
+		synchronized (this.syncLock) {
+			synchronized (this) {
+				this.channel.truncate(0);
+				this.channel.position(0);
+				this.channel.force(true);
+				this.written = 0;
+				this.durable = 0;
+			}
+		}
+	}
+	
+	
+	// force the log and close the file
+	public void close() throws IOException {
+		if (this.flusher != null) this.flusher.shutdownNow();
+		synchronized (this.syncLock) {
+			synchronized (this) {
+				if (!this.channel.isOpen()) return;
+				this.channel.force(false);
+				this.channel.close();
+			}
+		}
+	}
+	
+	
+	// receiver of replayed records
+	public interface Handler {
+		void put(String key, Object value);
+		void delete(String key);
+	}
+	
+	
+	// append a framed record
+	private synchronized long append(byte op, String key, byte[] value) throws IOException {
+		
+		// encode payload
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int valueLength = (value == null) ? -1 : value.length;
+		int length = 1 + 4 + keyBytes.length + 4 + Math.max(0, valueLength);
+		if (length > MAX_RECORD) throw new IOException("Record for "+key+" is too large for the log");
+		ByteBuffer record = ByteBuffer.allocate(FRAME + length);
+		record.position(FRAME);
+		record.put(op);
+		record.putInt(keyBytes.length);
+		record.put(keyBytes);
+		record.putInt(valueLength);
+		if (value != null) record.put(value);
+		
+		// frame
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), FRAME, length);
+		record.putInt(0, length);
+		record.putInt(4, (int)crc.getValue());
+		record.flip();
+		
+		// write
+		while (record.hasRemaining()) {
+			this.channel.write(record);
+		}
+		this.written += FRAME + length;
+		
+		// sync every record
+		if (this.sync == Sync.ALWAYS) {
+			this.channel.force(false);
+			this.durable = this.written;
+		}
+		return this.written;
+	}
+	
+	
+	// force the log up to the current write position, caller holds syncLock
+	private void force() throws IOException {
+		long target;
+		synchronized (this) {
+			target = this.written;
+		}
+		this.channel.force(false);
+		this.durable = Math.max(this.durable, target);
+	}
+	
+	
+	// background sync for the INTERVAL policy
+	private void syncQuietly() {
+		try {
+			if (this.durable < this.size()) this.sync();
+		} catch (IOException e) {
+			System.err.println("Warning: failed to sync write ahead log, "+e.getMessage());
+		}
+	}
+	
+	
+	// read valid records from the start of the log
+	// returns the position after the last valid record
+	private long scan(Handler handler) throws IOException {
+		long position = 0;
+		long end = this.channel.size();
+		ByteBuffer frame = ByteBuffer.allocate(FRAME);
+		while (position + FRAME <= end) {
+			
+			// read frame
+			frame.clear();
+			readFully(this.channel, frame, position);
+			int length = frame.getInt(0);
+			int checksum = frame.getInt(4);
+			if (length < 9 || length > MAX_RECORD || position + FRAME + length > end) break;
+			
+			// read and verify payload
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(this.channel, payload, position + FRAME);
+			CRC32 crc = new CRC32();
+			crc.update(payload.array(), 0, length);
+			if ((int)crc.getValue() != checksum) break;
+			
+			// decode payload
+			if (handler != null) {
+				payload.flip();
+				byte op = payload.get();
+				byte[] key = new byte[payload.getInt()];
+				payload.get(key);
+				int valueLength = payload.getInt();
+				byte[] value = (valueLength < 0) ? null : new byte[valueLength];
+				if (value != null) payload.get(value);
+				if (op == PUT) {
+					handler.put(new String(key, StandardCharsets.UTF_8), (value == null) ? null : TableSnapshot.deserialise(value));
+				} else {
+					handler.delete(new String(key, StandardCharsets.UTF_8));
+				}
+			}
+			position += FRAME + length;
+		}
+		return position;
+	}
+	
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) throw new IOException("Unexpected end of log");
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package htable.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import htable.util.Histogram;
+
+// Latency, allocation and event counters for a hash table.
+// 
+// A table only records into an instance of this class once metrics
+// are enabled, otherwise each operation costs a single null check.
+// Recording is allocation free so enabling metrics does not add
+// garbage to the operations being measured.
+// 
+// Allocated bytes are read from the per thread allocation counter of
+// the HotSpot ThreadMXBean, when the JVM does not support the counter
+// allocations are reported as zero.
+// 
+public class TableMetrics implements TableMetricsMXBean {
+	
+	// operation identifiers
+	public static final int GET = 0;
+	public static final int PUT = 1;
+	public static final int DELETE = 2;
+	public static final int UPDATE = 3;
+	public static final int HASH = 4;
+	private static final int OPERATIONS = 5;
+	
+	private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+	
+	// recorded values
+	private final Histogram[] latencies;
+	private final AtomicLongArray allocated;
+	private final AtomicLong misses;
+	private final AtomicLong retrains;
+	private final AtomicLong budgetExceeded;
+	private final AtomicLong stashHits;
+	private final Histogram steps;
+	private volatile long since;
+	
+	// jmx registration
+	private ObjectName name;
+	
+	public TableMetrics() {
+		this.latencies = new Histogram[OPERATIONS];
+		for (int i=0; i < OPERATIONS; i++) {
+			this.latencies[i] = new Histogram();
+		}
+		this.allocated = new AtomicLongArray(OPERATIONS);
+		this.misses = new AtomicLong();
+		this.retrains = new AtomicLong();
+		this.budgetExceeded = new AtomicLong();
+		this.stashHits = new AtomicLong();
+		this.steps = new Histogram();
+		this.since = System.nanoTime();
+	}
+	
+	
+	// start time of an operation
+	public long startTime() {
+		return System.nanoTime();
+	}
+	
+	
+	// bytes allocated by the current thread at the start of an operation
+	public long startBytes() {
+		return (THREADS == null) ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+	}
+	
+	
+	// record the latency and allocations of an operation
+	public void record(int operation, long startTime, long startBytes) {
+		this.latencies[operation].record(System.nanoTime() - startTime);
+		if (THREADS != null) this.allocated.addAndGet(operation, THREADS.getCurrentThreadAllocatedBytes() - startBytes);
+	}
+	
+	
+	// record count operations performed together, such as the keys of a batch
+	// each is recorded with an equal share of the latency
+	public void record(int operation, long startTime, long startBytes, int count) {
+		this.latencies[operation].record((System.nanoTime() - startTime) / Math.max(count, 1), count);
+		if (THREADS != null) this.allocated.addAndGet(operation, THREADS.getCurrentThreadAllocatedBytes() - startBytes);
+	}
+	
+	
+	// record a lookup of a key that is not in the table
+	public void miss() {
+		this.misses.incrementAndGet();
+	}
+	
+	
+	// record a retrain of the hash function
+	public void retrain() {
+		this.retrains.incrementAndGet();
+	}
+	
+	
+	// record a retrain stopped early by its training budget
+	public void budgetExceeded() {
+		this.budgetExceeded.incrementAndGet();
+	}
+	
+	
+	// record a lookup answered from the stash of keys the network could not map
+	public void stashHit() {
+		this.stashHits.incrementAndGet();
+	}
+	
+	
+	// record the number of steps a successful retrain took to converge
+	public void steps(int steps) {
+		this.steps.record(steps);
+	}
+	
+	
+	// point in time copy of the recorded values
+	public Snapshot snapshot() {
+		Histogram[] copies = new Histogram[OPERATIONS];
+		long[] bytes = new long[OPERATIONS];
+		for (int i=0; i < OPERATIONS; i++) {
+			copies[i] = this.latencies[i].copy();
+			bytes[i] = this.allocated.get(i);
+		}
+		return new Snapshot(copies, bytes, this.steps.copy(), this.misses.get(), this.retrains.get(), System.nanoTime() - this.since);
+	}
+	
+	
+	// clear all recorded values
+	public void reset() {
+		for (int i=0; i < OPERATIONS; i++) {
+			this.latencies[i].reset();
+			this.allocated.set(i, 0);
+		}
+		this.misses.set(0);
+		this.retrains.set(0);
+		this.budgetExceeded.set(0);
+		this.stashHits.set(0);
+		this.steps.reset();
+		this.since = System.nanoTime();
+	}
+	
+	
+	// register this instance with the platform MBean server
+	public void register(String tableName) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("htable:type=NNHashTable,name="+ObjectName.quote(tableName));
+			server.registerMBean(this, objectName);
+			this.name = objectName;
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not register metrics for "+tableName, e);
+		}
+	}
+	
+	
+	// remove this instance from the platform MBean server
+	public void unregister() {
+		if (this.name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not unregister metrics for "+this.name, e);
+		} finally {
+			this.name = null;
+		}
+	}
+	
+	
+	// MXBean attributes
+	public long getGetCount() { return this.latencies[GET].count(); }
+	public long getPutCount() { return this.latencies[PUT].count(); }
+	public long getDeleteCount() { return this.latencies[DELETE].count(); }
+	public long getUpdateCount() { return this.latencies[UPDATE].count(); }
+	public long getHashCount() { return this.latencies[HASH].count(); }
+	
+	public double getGetMeanNanos() { return this.latencies[GET].mean(); }
+	public long getGetP50Nanos() { return this.latencies[GET].percentile(50); }
+	public long getGetP99Nanos() { return this.latencies[GET].percentile(99); }
+	public long getGetMaxNanos() { return this.latencies[GET].max(); }
+	
+	public double getPutMeanNanos() { return this.latencies[PUT].mean(); }
+	public long getPutP50Nanos() { return this.latencies[PUT].percentile(50); }
+	public long getPutP99Nanos() { return this.latencies[PUT].percentile(99); }
+	public long getPutMaxNanos() { return this.latencies[PUT].max(); }
+	
+	public double getDeleteMeanNanos() { return this.latencies[DELETE].mean(); }
+	public long getDeleteP99Nanos() { return this.latencies[DELETE].percentile(99); }
+	
+	public double getUpdateMeanNanos() { return this.latencies[UPDATE].mean(); }
+	public long getUpdateP99Nanos() { return this.latencies[UPDATE].percentile(99); }
+	
+	public double getHashMeanNanos() { return this.latencies[HASH].mean(); }
+	public long getHashP99Nanos() { return this.latencies[HASH].percentile(99); }
+	
+	public long getMisses() { return this.misses.get(); }
+	public double getMissRate() { return ratio(this.misses.get(), this.latencies[GET].count()); }
+	
+	public long getRetrains() { return this.retrains.get(); }
+	public double getRetrainsPerSecond() { return ratio(this.retrains.get() * 1e9, System.nanoTime() - this.since); }
+	public double getTrainingStepsMean() { return this.steps.mean(); }
+	public long getTrainingStepsMax() { return this.steps.max(); }
+	public long getTrainingStepsTotal() { return this.steps.sum(); }
+	public long getBudgetExceeded() { return this.budgetExceeded.get(); }
+	public long getStashHits() { return this.stashHits.get(); }
+	
+	public long getAllocatedBytes() {
+		long total = 0;
+		for (int i=0; i < OPERATIONS; i++) {
+			total += this.allocated.get(i);
+		}
+		return total;
+	}
+	
+	
+	// ratio that is zero when the denominator is zero
+	private static double ratio(double numerator, double denominator) {
+		return (denominator == 0) ? 0.0 : numerator / denominator;
+	}
+	
+	
+	// HotSpot thread allocation counter, or null if unsupported
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		try {
+			if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+				if (threads.isThreadAllocatedMemorySupported()) {
+					threads.setThreadAllocatedMemoryEnabled(true);
+					return threads;
+				}
+			}
+		} catch (UnsupportedOperationException | SecurityException e) {
+			// fall through to unsupported
+		}
+		return null;
+	}
+	
+	
+	// immutable copy of recorded metrics
+	public static class Snapshot {
+		
+		private final Histogram[] latencies;
+		private final long[] allocated;
+		private final Histogram steps;
+		public final long misses;
+		public final long retrains;
+		public final long elapsedNanos;
+		
+		private Snapshot(Histogram[] latencies, long[] allocated, Histogram steps, long misses, long retrains, long elapsedNanos) {
+			this.latencies = latencies;
+			this.allocated = allocated;
+			this.steps = steps;
+			this.misses = misses;
+			this.retrains = retrains;
+			this.elapsedNanos = elapsedNanos;
+		}
+		
+		
+		// latency histogram of an operation in nanoseconds
+		public Histogram latency(int operation) {
+			return this.latencies[operation];
+		}
+		
+		
+		// bytes allocated by an operation
+		public long allocatedBytes(int operation) {
+			return this.allocated[operation];
+		}
+		
+		
+		// training steps taken by each successful retrain
+		public Histogram trainingSteps() {
+			return this.steps;
+		}
+		
+		
+		// fraction of gets that did not find their key
+		public double missRate() {
+			return ratio(this.misses, this.latencies[GET].count());
+		}
+		
+		
+		// retrains per second over the recording period
+		public double retrainRate() {
+			return ratio(this.retrains * 1e9, this.elapsedNanos);
+		}
+	}
+}
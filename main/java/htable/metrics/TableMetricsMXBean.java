@@ -0,0 +1,47 @@
+package htable.metrics;
+
+// JMX view of the metrics recorded for a hash table.
+// Latencies are reported in nanoseconds.
+// 
+public interface TableMetricsMXBean {
+	
+	long getGetCount();
+	long getPutCount();
+	long getDeleteCount();
+	long getUpdateCount();
+	long getHashCount();
+	
+	double getGetMeanNanos();
+	long getGetP50Nanos();
+	long getGetP99Nanos();
+	long getGetMaxNanos();
+	
+	double getPutMeanNanos();
+	long getPutP50Nanos();
+	long getPutP99Nanos();
+	long getPutMaxNanos();
+	
+	double getDeleteMeanNanos();
+	long getDeleteP99Nanos();
+	
+	double getUpdateMeanNanos();
+	long getUpdateP99Nanos();
+	
+	double getHashMeanNanos();
+	long getHashP99Nanos();
+	
+	long getMisses();
+	double getMissRate();
+	
+	long getRetrains();
+	double getRetrainsPerSecond();
+	double getTrainingStepsMean();
+	long getTrainingStepsMax();
+	long getTrainingStepsTotal();
+	long getBudgetExceeded();
+	long getStashHits();
+	
+	long getAllocatedBytes();
+	
+	void reset();
+}
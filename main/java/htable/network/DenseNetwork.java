@@ -1,5 +1,7 @@
 package htable.network;
 
+import java.util.random.RandomGenerator;
+
 import htable.util.Matrix;
 
 // Fully connected neural network with sigmoid activation
@@ -7,14 +9,45 @@ import htable.util.Matrix;
 // initialised with random values sampled from the standard
 // normal distribution and optimised by gradient descent.
 // 
+// Networks share the Matrix RNG unless they are given their own
+// generator, which avoids contention when many networks are built in
+// parallel and keeps initialisation reproducible under a seed.
+// 
+// Inputs are expected to be padded with trailing zeros, as produced by
+// Encoding.stringNorm. The first layer only visits the active columns
+// of each input, up to its last non zero value, in both the forward
+// pass and the weight gradient, so the cost of the first layer scales
+// with the key length rather than the key limit.
+// 
+// Training can optionally mine hard examples. Every recheck steps a
+// full step visits every record and measures its margin, the output of
+// its label minus the highest other output, the steps in between only
+// visit records with a margin at or below the threshold. Once most
+// records are mapped the cost of a step scales with the number of
+// difficult records rather than the number of records. Convergence is
+// only measured on full steps.
+// 
 public class DenseNetwork {
 	
+	// print training progress to stdout
+	private static boolean logging = true;
+	
 	// network parameters
 	private int depth;
 	private Matrix[] weights;
 	private Matrix[] biases;
 	
+	// hard example mining, disabled when recheck is 1
+	private double hardMargin;
+	private int recheck = 1;
+	
 	public DenseNetwork(int... layers) {
+		this(null, layers);
+	}
+	
+	
+	// constructor with a specific generator for parameter initialisation
+	public DenseNetwork(RandomGenerator rng, int... layers) {
 		
 		// setup layers
 		this.depth = layers.length-1;
@@ -23,9 +56,71 @@ public class DenseNetwork {
 		
 		// setup layer parameters with random values
 		for (int i=0; i < this.depth; i++) {
-			this.weights[i] = Matrix.random(layers[i+1], layers[i]);
-			this.biases[i] = Matrix.random(layers[i+1], 1);
+			this.weights[i] = (rng == null) ? Matrix.random(layers[i+1], layers[i]) : Matrix.random(layers[i+1], layers[i], rng);
+			this.biases[i] = (rng == null) ? Matrix.random(layers[i+1], 1) : Matrix.random(layers[i+1], 1, rng);
+		}
+	}
+	
+	
+	// constructor for a network with existing parameters
+	// the matrices are used directly and are not copied
+	public DenseNetwork(Matrix[] weights, Matrix[] biases) {
+		
+		// handle malformed parameters
+		if (weights.length != biases.length || weights.length == 0) throw new IllegalArgumentException("Malformed parameters, weights and biases must have the same non zero length");
+		for (int i=0; i < weights.length; i++) {
+			if (biases[i].width != 1 || biases[i].height != weights[i].height) throw new IllegalArgumentException("Malformed parameters, biases of layer "+i+" do not match the weights");
+			if (i > 0 && weights[i].width != weights[i-1].height) throw new IllegalArgumentException("Malformed parameters, weights of layer "+i+" do not match the previous layer");
+		}
+		
+		this.depth = weights.length;
+		this.weights = weights;
+		this.biases = biases;
+	}
+	
+	
+	// number of layers excluding the input
+	public int depth() {
+		return this.depth;
+	}
+	
+	
+	// weights of a layer, the returned matrix is the network parameter
+	public Matrix weights(int layer) {
+		return this.weights[layer];
+	}
+	
+	
+	// biases of a layer, the returned matrix is the network parameter
+	public Matrix biases(int layer) {
+		return this.biases[layer];
+	}
+	
+	
+	// copy of this network with its own parameters
+	public DenseNetwork copy() {
+		Matrix[] weights = new Matrix[this.depth];
+		Matrix[] biases = new Matrix[this.depth];
+		for (int i=0; i < this.depth; i++) {
+			weights[i] = this.weights[i].copy();
+			biases[i] = this.biases[i].copy();
 		}
+		return new DenseNetwork(weights, biases);
+	}
+	
+	
+	// train on records with a margin at or below margin between full steps
+	// every recheck steps, a recheck of 1 visits every record on every step
+	public void setHardExampleMining(double margin, int recheck) {
+		if (margin < 0 || recheck < 1) throw new IllegalArgumentException("Margin cannot be negative and recheck cannot be less than 1");
+		this.hardMargin = margin;
+		this.recheck = recheck;
+	}
+	
+	
+	// enable or disable printing of training progress for all networks
+	public static void setLogging(boolean enabled) {
+		logging = enabled;
 	}
 	
 	
@@ -35,9 +130,19 @@ public class DenseNetwork {
 		// handle shape exception
 		if (x.width != 1) throw new IllegalArgumentException("Inputs must be column vector form");
 		
-		// forward propagate x
-		Matrix activation = x;
-		for (int i=0; i < this.depth; i++) {
+		return this.predict(x, Encoding.activeLength(x));
+	}
+	
+	
+	// predict the label of x where only the first active values can be non zero
+	public Matrix predict(Matrix x, int active) {
+		
+		// handle shape exception
+		if (x.width != 1) throw new IllegalArgumentException("Inputs must be column vector form");
+		
+		// forward propagate x, the first layer over the active columns only
+		Matrix activation = Activations.sigmoid(Matrix.dot(this.weights[0], x, active).add(this.biases[0]));
+		for (int i=1; i < this.depth; i++) {
 			activation = Activations.sigmoid(Matrix.dot(this.weights[i], activation).add(this.biases[i]));
 		}
 		
@@ -45,6 +150,20 @@ public class DenseNetwork {
 	}
 	
 	
+	// predict the labels of every column of xs with one matrix product per layer,
+	// where only the first active rows of xs can be non zero
+	// 
+	// returns a matrix with the prediction for column j of xs in column j
+	public Matrix predictBatch(Matrix xs, int active) {
+		Matrix activation = Activations.sigmoid(Matrix.dot(this.weights[0], xs, active).addColumn(this.biases[0]));
+		for (int i=1; i < this.depth; i++) {
+			activation = Activations.sigmoid(Matrix.dot(this.weights[i], activation).addColumn(this.biases[i]));
+		}
+		
+		return activation;
+	}
+	
+	
 	// optimise network with gradient descent for target data
 	//
 	// to speed up the tests, replace Metrics.crossEntropy and 
@@ -53,24 +172,96 @@ public class DenseNetwork {
 	// to compute but does not converge as quickly so can cause
 	// more failures with low max_step
 	//
-	public void fit(Matrix[] target_x, Matrix[] target_y, double target_accuracy, int max_step, int buffer_steps, double learning_rate) {
+	// returns the number of steps taken
+	//
+	public int fit(Matrix[] target_x, Matrix[] target_y, double target_accuracy, int max_step, int buffer_steps, double learning_rate) {
+		return this.fit(target_x, target_y, target_accuracy, max_step, buffer_steps, learning_rate, 1);
+	}
+	
+	
+	// optimise network with gradient descent for target data, counting a
+	// prediction as accurate when its label is within the top_k outputs
+	//
+	// with top_k > 1 training stops as soon as every label is in the top_k
+	// outputs of its prediction, rather than at the exact argmax, which
+	// needs fewer steps for keys that are difficult to separate
+	//
+	public int fit(Matrix[] target_x, Matrix[] target_y, double target_accuracy, int max_step, int buffer_steps, double learning_rate, int top_k) {
+		return this.fit(target_x, target_y, target_accuracy, max_step, buffer_steps, learning_rate, top_k, null);
+	}
+	
+	
+	// optimise network with gradient descent for target data within a budget
+	//
+	// the budget is checked before every step, once it runs out or is
+	// cancelled training stops with an IllegalStateException and the
+	// parameters keep the steps taken so far, so fitting again resumes
+	// from there. a null budget never runs out
+	//
+	public int fit(Matrix[] target_x, Matrix[] target_y, double target_accuracy, int max_step, int buffer_steps, double learning_rate, int top_k, TrainingBudget budget) {
 		
 		// handle malformed data
 		if (target_x.length != target_y.length) throw new IllegalArgumentException("Malformed data, target_x.length != target_y.length");
 		
+		return this.fit(target_x, target_y, null, target_accuracy, max_step, buffer_steps, learning_rate, top_k, budget);
+	}
+	
+	
+	// optimise network with gradient descent for one hot targets given by
+	// their labels, the output index of each x
+	//
+	// equivalent to fitting Encoding.oneHot targets, but the loss and its
+	// gradient are computed from the label so no target vectors are built
+	//
+	public int fit(Matrix[] target_x, int[] target_labels, double target_accuracy, int max_step, int buffer_steps, double learning_rate, int top_k, TrainingBudget budget) {
+		
+		// handle malformed data
+		if (target_x.length != target_labels.length) throw new IllegalArgumentException("Malformed data, target_x.length != target_labels.length");
+		
+		return this.fit(target_x, null, target_labels, target_accuracy, max_step, buffer_steps, learning_rate, top_k, budget);
+	}
+	
+	
+	// training loop for either target vectors or labels
+	private int fit(Matrix[] target_x, Matrix[] target_y, int[] target_labels, double target_accuracy, int max_step, int buffer_steps, double learning_rate, int top_k, TrainingBudget budget) {
+		
 		// setup constants
 		int batch_size = target_x.length; // number of x,y pairs
 		int prop_depth = this.depth+1;    // network depth including input
 		int output = prop_depth-1;        // index of output layer including input
 		
+		// active input columns of each x
+		int[] active = new int[batch_size];
+		for (int i=0; i < batch_size; i++) {
+			active[i] = Encoding.activeLength(target_x[i]);
+		}
+		
 		// setup variables
 		double accuracy = 0.0;
 		double cost;
 		int convStep = 0;
+		int steps = 0;
+		
+		// records visited by hard steps when mining hard examples
+		boolean mining = this.recheck > 1;
+		int[] hard = new int[batch_size];
+		int hardCount = 0;
+		int lastFull = 0;
 		
 		// train the network until convergence or max step
 		for (int step=0; step < max_step; step++) {
 			
+			// stop when the budget runs out, unless already converged
+			if (budget != null && budget.expired()) {
+				if (accuracy >= target_accuracy) break;
+				throw new IllegalStateException("Warning: training budget exceeded after "+step+" steps.");
+			}
+			
+			// full steps visit every record, hard steps only records with a low margin
+			boolean full = !mining || step == 0 || hardCount == 0 || step - lastFull >= this.recheck;
+			int visited = full ? batch_size : hardCount;
+			int found = 0;
+			
 			// setup metrics and gradient sums
 			double costSum = 0;
 			double accuracySum = 0;
@@ -83,11 +274,12 @@ public class DenseNetwork {
 			}
 			
 			// calculate metrics and gradient sums
-			for (int i=0; i < batch_size; i++) {
+			for (int v=0; v < visited; v++) {
+				int i = full ? v : hard[v];
 				
-				// unpack x,y pair
+				// unpack x,y pair, y is null when training on labels
 				Matrix x = target_x[i];
-				Matrix y = target_y[i];
+				Matrix y = (target_y == null) ? null : target_y[i];
 				
 				// setup layer activations and z vectors
 				Matrix[] zs = new Matrix[prop_depth]; // layer z vectors
@@ -97,44 +289,61 @@ public class DenseNetwork {
 				zs[0] = null;
 				as[0] = x;
 				
-				// forward propagate
+				// forward propagate, the first layer over the active columns only
 				for (int l=0; l < this.depth; l++) {
-					zs[l+1] = Matrix.dot(this.weights[l], as[l]).add(this.biases[l]);
+					zs[l+1] = Matrix.dot(this.weights[l], as[l], (l == 0) ? active[i] : as[l].height).add(this.biases[l]);
 					as[l+1] = Activations.sigmoid(zs[l+1]);
 				}
 				
 				// record results
-				costSum += Metrics.crossEntropy(as[output], y);
-				accuracySum += Metrics.classificationAccuracy(as[output], y);
+				if (full && y != null) {
+					costSum += Metrics.crossEntropy(as[output], y);
+					accuracySum += (top_k == 1) ? Metrics.classificationAccuracy(as[output], y) : Metrics.topKAccuracy(as[output], y, top_k);
+				} else if (full) {
+					costSum += Metrics.crossEntropy(as[output], target_labels[i]);
+					accuracySum += (top_k == 1) ? Metrics.classificationAccuracy(as[output], target_labels[i]) : Metrics.topKAccuracy(as[output], target_labels[i], top_k);
+				}
+				
+				// keep records with a low margin for the next hard steps
+				if (mining) {
+					double margin = (y != null) ? Metrics.margin(as[output], y, top_k) : Metrics.margin(as[output], target_labels[i], top_k);
+					if (margin <= this.hardMargin) hard[found++] = i;
+				}
 				
 				// backpropagate error through output layer
-				Matrix error = Metrics.crossEntropyDerivative(as[output], y);
+				Matrix error = (y != null) ? Metrics.crossEntropyDerivative(as[output], y) : Metrics.crossEntropyDerivative(as[output], target_labels[i]);
 				Matrix delta = error.multiply(Activations.sigmoidDerivative(zs[output]));
-				weightsDelta[output-1].sum(Matrix.dot(delta, as[output-1].transpose()));
+				weightsDelta[output-1].sumOuter(delta, as[output-1], (output-1 == 0) ? active[i] : as[output-1].height);
 				biasesDelta[output-1].sum(delta);
 				
 				// backpropagate delta through subsequent layers
 				for (int l=output-2; l >= 0; l--) {
 					delta = Matrix.dot(this.weights[l+1].transpose(), delta).multiply(Activations.sigmoidDerivative(zs[l+1]));
-					weightsDelta[l].sum(Matrix.dot(delta, as[l].transpose()));
+					weightsDelta[l].sumOuter(delta, as[l], (l == 0) ? active[i] : as[l].height);
 					biasesDelta[l].sum(delta);
 				}
 			}
 			
 			// apply average negative gradient ( gradient descent )
 			for (int l=0; l < this.depth; l++) {
-				this.weights[l].dif(weightsDelta[l].multiply(learning_rate / batch_size));
-				this.biases[l].dif(biasesDelta[l].multiply(learning_rate / batch_size));
+				this.weights[l].dif(weightsDelta[l].multiply(learning_rate / visited));
+				this.biases[l].dif(biasesDelta[l].multiply(learning_rate / visited));
 			}
+			steps = step+1;
+			hardCount = found;
+			
+			// cost and accuracy are only measured on full steps
+			if (!full) continue;
+			lastFull = step;
 			
 			// calculate cost and accuracy
 			cost = costSum / batch_size;
 			accuracy = accuracySum / batch_size;
-			System.out.println("step="+step+", cost="+cost+", accuracy="+accuracy);
+			if (logging) System.out.println("step="+step+", cost="+cost+", accuracy="+accuracy);
 			
 			// try early stop condition
 			if (accuracy >= target_accuracy) {
-				System.out.println("stopping in " + (buffer_steps - convStep) + " steps");
+				if (logging) System.out.println("stopping in " + (buffer_steps - convStep) + " steps");
 				convStep++;
 				if (convStep > buffer_steps) {
 					break;
@@ -146,5 +355,7 @@ public class DenseNetwork {
 		
 		// handle failure to converge
 		if (accuracy < target_accuracy) throw new IllegalStateException("Warning: failed to converge.");
+		
+		return steps;
 	}
 }
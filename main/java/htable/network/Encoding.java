@@ -21,4 +21,27 @@ public final class Encoding {
 		}
 		return norm;
 	}
+	
+	
+	// convert strings to a matrix with one column of normalised character values per string
+	public static Matrix stringNorm(String[] keys, int size, int minchar, int maxchar) {
+		Matrix norm = Matrix.constant(size, keys.length, 0.0);
+		for (int j=0; j < keys.length; j++) {
+			for (int i=0; i < keys[j].length(); i++) {
+				norm.set(i, j, (keys[j].charAt(i) - minchar) / (double)(maxchar - minchar + 1));
+			}
+		}
+		return norm;
+	}
+	
+	
+	// number of leading rows of a column vector up to its last non zero value
+	// 
+	// string encodings are padded with zeros up to the key limit, only
+	// this many columns of the first layer contribute to a prediction
+	public static int activeLength(Matrix x) {
+		int length = x.height;
+		while (length > 0 && x.get(length-1, 0) == 0.0) length--;
+		return length;
+	}
 }
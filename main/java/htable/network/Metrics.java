@@ -1,5 +1,7 @@
 package htable.network;
 
+import java.util.Arrays;
+
 import htable.util.Matrix;
 
 public final class Metrics {
@@ -55,6 +57,39 @@ public final class Metrics {
 	}
 	
 	
+	// cross entropy cost function for a one hot target given by its label
+	// 
+	// equal to crossEntropy(y, Encoding.oneHot(label, y.height)) without
+	// building the target
+	public static double crossEntropy(Matrix y, int label) {
+		
+		// handle shape exception
+		if (y.width != 1) throw new IllegalArgumentException("Inputs must be column vector format");
+		
+		// mean( -1 * ln(1-y) ), except -1 * ln(y) at the label
+		double sum = 0;
+		for (int i=0; i < y.height; i++) {
+			sum -= (i == label) ? Math.log(y.get(i, 0)) : Math.log(1 - y.get(i, 0));
+		}
+		return sum / y.height;
+	}
+	
+	
+	// cross entropy derivative for a one hot target given by its label
+	public static Matrix crossEntropyDerivative(Matrix y, int label) {
+		
+		// handle shape exception
+		if (y.width != 1) throw new IllegalArgumentException("Inputs must be column vector format");
+		
+		// ( 1 / (1-y) ) / length(y), except ( -1 / y ) / length(y) at the label
+		Matrix d = new Matrix(y.height, 1);
+		for (int i=0; i < y.height; i++) {
+			d.set(i, 0, ((i == label) ? -1 / y.get(i, 0) : 1 / (1 - y.get(i, 0))) / y.height);
+		}
+		return d;
+	}
+	
+	
 	// determine if a prediction is an accurate prediction
 	// return 1 if accurate or 0 if inaccurate
 	public static int classificationAccuracy(Matrix y, Matrix t) {
@@ -66,4 +101,74 @@ public final class Metrics {
 		int[] tmax = t.max();
 		return (ymax[0] == tmax[0] && ymax[1] == tmax[1]) ? 1 : 0;
 	}
+	
+	
+	// determine if a prediction is the label
+	// return 1 if accurate or 0 if inaccurate
+	public static int classificationAccuracy(Matrix y, int label) {
+		
+		// handle shape exception
+		if (y.width != 1) throw new IllegalArgumentException("Inputs must be column vector format");
+		
+		return (y.max()[0] == label) ? 1 : 0;
+	}
+	
+	
+	// determine if the label of a prediction is within its k highest outputs
+	// return 1 if accurate or 0 if inaccurate
+	public static int topKAccuracy(Matrix y, Matrix t, int k) {
+		
+		// handle shape exception
+		if (t.width != 1) throw new IllegalArgumentException("Inputs must be column vector format");
+		
+		return topKAccuracy(y, t.max()[0], k);
+	}
+	
+	
+	// determine if the label is within the k highest outputs of a prediction
+	// return 1 if accurate or 0 if inaccurate
+	public static int topKAccuracy(Matrix y, int label, int k) {
+		
+		// handle shape exception
+		if (y.width != 1) throw new IllegalArgumentException("Inputs must be column vector format");
+		
+		for (int index : y.topK(k)) {
+			if (index == label) return 1;
+		}
+		return 0;
+	}
+	
+	
+	// margin of a prediction, the output of its label minus the k-th highest
+	// other output, positive when the label is within the k highest outputs
+	public static double margin(Matrix y, Matrix t, int k) {
+		
+		// handle shape exception
+		if (t.width != 1) throw new IllegalArgumentException("Inputs must be column vector format");
+		
+		return margin(y, t.max()[0], k);
+	}
+	
+	
+	// margin of a prediction for a label, see margin
+	public static double margin(Matrix y, int label, int k) {
+		
+		// handle shape exception
+		if (y.width != 1) throw new IllegalArgumentException("Inputs must be column vector format");
+		
+		// k highest outputs other than the label, in descending order
+		double[] top = new double[k];
+		Arrays.fill(top, Double.NEGATIVE_INFINITY);
+		for (int i=0; i < y.height; i++) {
+			double value = y.get(i, 0);
+			if (i == label || value <= top[k-1]) continue;
+			int j = k-1;
+			while (j > 0 && top[j-1] < value) {
+				top[j] = top[j-1];
+				j--;
+			}
+			top[j] = value;
+		}
+		return y.get(label, 0) - top[k-1];
+	}
 }
@@ -0,0 +1,165 @@
+package htable.network;
+
+import java.util.Arrays;
+
+import htable.util.Matrix;
+
+// Read only copy of a DenseNetwork with the smallest weights pruned.
+// 
+// The weights that remain after pruning are stored per layer in
+// compressed sparse row form: for row i the non zero weights are
+// values[rowStart[i]] to values[rowStart[i+1]-1] in columns of the same
+// positions, sorted by column. Inference only visits stored weights,
+// and the first layer stops at the active length of the input as in
+// DenseNetwork.
+// 
+// Pruning changes the outputs of the network, so callers should check
+// the pruned network against their own data before using it.
+// 
+public class SparseNetwork {
+	
+	// network shape
+	private final int depth;
+	private final int[] layers;
+	
+	// compressed sparse row parameters
+	private final int[][] rowStart;
+	private final int[][] columns;
+	private final double[][] values;
+	private final double[][] biases;
+	
+	// pruned copy of network, dropping weights with magnitude less than threshold
+	public SparseNetwork(DenseNetwork network, double threshold) {
+		this.depth = network.depth();
+		this.layers = new int[this.depth+1];
+		this.rowStart = new int[this.depth][];
+		this.columns = new int[this.depth][];
+		this.values = new double[this.depth][];
+		this.biases = new double[this.depth][];
+		this.layers[0] = network.weights(0).width;
+		for (int l=0; l < this.depth; l++) {
+			Matrix w = network.weights(l);
+			Matrix b = network.biases(l);
+			this.layers[l+1] = w.height;
+			
+			// count stored weights
+			int count = 0;
+			for (int i=0; i < w.height; i++) {
+				for (int j=0; j < w.width; j++) {
+					if (Math.abs(w.get(i, j)) >= threshold) count++;
+				}
+			}
+			
+			// pack rows
+			this.rowStart[l] = new int[w.height+1];
+			this.columns[l] = new int[count];
+			this.values[l] = new double[count];
+			this.biases[l] = new double[w.height];
+			int p = 0;
+			for (int i=0; i < w.height; i++) {
+				this.rowStart[l][i] = p;
+				for (int j=0; j < w.width; j++) {
+					if (Math.abs(w.get(i, j)) < threshold) continue;
+					this.columns[l][p] = j;
+					this.values[l][p] = w.get(i, j);
+					p++;
+				}
+				this.biases[l][i] = b.get(i, 0);
+			}
+			this.rowStart[l][w.height] = p;
+		}
+	}
+	
+	
+	// pruned copy of network, dropping the smallest sparsity fraction of the weights
+	public static SparseNetwork prune(DenseNetwork network, double sparsity) {
+		
+		// handle invalid parameters
+		if (sparsity < 0.0 || sparsity >= 1.0) throw new IllegalArgumentException("Sparsity must be at least 0 and less than 1");
+		
+		// magnitude below which the sparsity fraction of all weights fall
+		int total = 0;
+		for (int l=0; l < network.depth(); l++) {
+			total += network.weights(l).height * network.weights(l).width;
+		}
+		double[] magnitudes = new double[total];
+		int n = 0;
+		for (int l=0; l < network.depth(); l++) {
+			Matrix w = network.weights(l);
+			for (int i=0; i < w.height; i++) {
+				for (int j=0; j < w.width; j++) {
+					magnitudes[n++] = Math.abs(w.get(i, j));
+				}
+			}
+		}
+		Arrays.sort(magnitudes);
+		return new SparseNetwork(network, magnitudes[(int)(sparsity * total)]);
+	}
+	
+	
+	// number of layers excluding the input
+	public int depth() {
+		return this.depth;
+	}
+	
+	
+	// number of stored weights
+	public int nonZeros() {
+		int count = 0;
+		for (int l=0; l < this.depth; l++) {
+			count += this.values[l].length;
+		}
+		return count;
+	}
+	
+	
+	// fraction of the weights of the dense network that are stored
+	public double density() {
+		long total = 0;
+		for (int l=0; l < this.depth; l++) {
+			total += (long)this.layers[l] * this.layers[l+1];
+		}
+		return this.nonZeros() / (double)total;
+	}
+	
+	
+	// predict the label of x where only the first active values can be non zero
+	//
+	// the output sigmoid is skipped because it does not change the order of
+	// the outputs, so the result ranks labels the same as DenseNetwork.predict
+	public Matrix predict(Matrix x, int active) {
+		
+		// handle shape exception
+		if (x.width != 1 || x.height != this.layers[0]) throw new IllegalArgumentException("Inputs must be column vector form");
+		
+		// first layer over the active columns
+		double[] activation = new double[this.layers[1]];
+		for (int i=0; i < activation.length; i++) {
+			double z = this.biases[0][i];
+			for (int p=this.rowStart[0][i]; p < this.rowStart[0][i+1]; p++) {
+				int j = this.columns[0][p];
+				if (j >= active) break;
+				z += this.values[0][p] * x.get(j, 0);
+			}
+			activation[i] = z;
+		}
+		
+		// subsequent layers
+		for (int l=1; l < this.depth; l++) {
+			for (int j=0; j < activation.length; j++) {
+				activation[j] = Activations.sigmoid(activation[j]);
+			}
+			double[] next = new double[this.layers[l+1]];
+			for (int i=0; i < next.length; i++) {
+				double z = this.biases[l][i];
+				for (int p=this.rowStart[l][i]; p < this.rowStart[l][i+1]; p++) {
+					z += this.values[l][p] * activation[this.columns[l][p]];
+				}
+				next[i] = z;
+			}
+			activation = next;
+		}
+		
+		return Matrix.column(activation);
+	}
+}
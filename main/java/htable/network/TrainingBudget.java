@@ -0,0 +1,49 @@
+package htable.network;
+
+import java.util.concurrent.TimeUnit;
+
+// Wall clock limit and cancellation flag for DenseNetwork.fit.
+// 
+// fit checks the budget before every step and stops once the deadline
+// passes or the budget is cancelled, leaving the parameters partially
+// trained so fitting again resumes from the last step. cancel may be
+// called from any thread.
+// 
+public final class TrainingBudget {
+	
+	// deadline in System.nanoTime, only used when bounded
+	private final long deadline;
+	private final boolean bounded;
+	private volatile boolean cancelled;
+	
+	// budget without a deadline, only stopped by cancel
+	public TrainingBudget() {
+		this.deadline = 0;
+		this.bounded = false;
+	}
+	
+	
+	// budget that runs out after timeout, a timeout of 0 has no deadline
+	public TrainingBudget(long timeout, TimeUnit unit) {
+		if (timeout < 0) throw new IllegalArgumentException("Timeout cannot be negative");
+		this.deadline = System.nanoTime() + unit.toNanos(timeout);
+		this.bounded = timeout > 0;
+	}
+	
+	
+	// stop training at the next step
+	public void cancel() {
+		this.cancelled = true;
+	}
+	
+	
+	public boolean cancelled() {
+		return this.cancelled;
+	}
+	
+	
+	// check if the budget was cancelled or its deadline has passed
+	public boolean expired() {
+		return this.cancelled || (this.bounded && System.nanoTime() - this.deadline >= 0);
+	}
+}
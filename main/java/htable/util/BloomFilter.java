@@ -0,0 +1,77 @@
+package htable.util;
+
+// Bloom filter over string keys.
+// 
+// Sized with 10 bits and 7 hash functions per expected key, which gives
+// a false positive rate of about 1% when the filter holds the expected
+// number of keys. Keys cannot be removed, instead the filter is cleared
+// and rebuilt from the remaining keys.
+// 
+// The 7 bit indices are derived from one 64 bit FNV-1a hash of the key
+// by double hashing, so a lookup reads the key once.
+// 
+public class BloomFilter {
+	
+	private static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+	
+	private final long[] bits;
+	private final int size;
+	
+	public BloomFilter(int expectedKeys) {
+		
+		// handle invalid parameters
+		if (expectedKeys < 1) throw new IllegalArgumentException("Expected keys cannot be less than 1");
+		
+		int words = (int)Math.min(Integer.MAX_VALUE / 64, ((long)expectedKeys * BITS_PER_KEY + 63) / 64);
+		this.bits = new long[words];
+		this.size = words * 64;
+	}
+	
+	
+	// add a key to the filter
+	public void add(String key) {
+		long hash = hash(key);
+		int h1 = (int)hash;
+		int h2 = (int)(hash >>> 32);
+		for (int i=0; i < HASHES; i++) {
+			int bit = Math.floorMod(h1 + i * h2, this.size);
+			this.bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+	
+	
+	// false if the key was never added, true if it may have been added
+	public boolean mightContain(String key) {
+		long hash = hash(key);
+		int h1 = (int)hash;
+		int h2 = (int)(hash >>> 32);
+		for (int i=0; i < HASHES; i++) {
+			int bit = Math.floorMod(h1 + i * h2, this.size);
+			if ((this.bits[bit >>> 6] & (1L << bit)) == 0) return false;
+		}
+		return true;
+	}
+	
+	
+	// remove every key from the filter
+	public void clear() {
+		for (int i=0; i < this.bits.length; i++) {
+			this.bits[i] = 0;
+		}
+	}
+	
+	
+	// 64 bit FNV-1a hash of the characters of a key with a final mix
+	private static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i=0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
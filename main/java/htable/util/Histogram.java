@@ -0,0 +1,141 @@
+package htable.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed bucket histogram of non-negative long values.
+// 
+// Buckets follow the HdrHistogram layout, values below 64 are counted
+// exactly and larger values are counted in 32 linear sub-buckets per
+// power of two, so every recorded value is within ~3% of the value
+// reported for its bucket. The bucket array is allocated once and
+// recording a value never allocates.
+// 
+public class Histogram {
+	
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int LINEAR = SUB_COUNT * 2;
+	private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_COUNT;
+	
+	private final AtomicLongArray counts;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+	
+	public Histogram() {
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.count = new AtomicLong();
+		this.sum = new AtomicLong();
+		this.max = new AtomicLong();
+	}
+	
+	
+	// record a single value, negative values are counted as zero
+	public void record(long value) {
+		if (value < 0) value = 0;
+		this.counts.incrementAndGet(bucket(value));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(value);
+		this.max.accumulateAndGet(value, Math::max);
+	}
+	
+	
+	// record the same value times times, negative values are counted as zero
+	public void record(long value, long times) {
+		if (value < 0) value = 0;
+		if (times < 1) return;
+		this.counts.addAndGet(bucket(value), times);
+		this.count.addAndGet(times);
+		this.sum.addAndGet(value * times);
+		this.max.accumulateAndGet(value, Math::max);
+	}
+	
+	
+	// total number of recorded values
+	public long count() {
+		return this.count.get();
+	}
+	
+	
+	// exact sum of recorded values
+	public long sum() {
+		return this.sum.get();
+	}
+	
+	
+	// mean of recorded values
+	public double mean() {
+		long n = this.count.get();
+		return (n == 0) ? 0.0 : this.sum.get() / (double)n;
+	}
+	
+	
+	// largest recorded value
+	public long max() {
+		return this.max.get();
+	}
+	
+	
+	// value at the given percentile in the range [0, 100]
+	// the upper bound of the bucket holding the percentile is returned
+	public long percentile(double percentile) {
+		
+		// handle invalid percentile
+		if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Percentile must be in the range [0, 100]");
+		
+		long n = this.count.get();
+		if (n == 0) return 0;
+		
+		// walk buckets until the rank of the percentile is reached
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int i=0; i < BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if (seen >= rank) return Math.min(upperBound(i), this.max.get());
+		}
+		return this.max.get();
+	}
+	
+	
+	// copy of this histogram, recording into the copy does not affect this instance
+	public Histogram copy() {
+		Histogram h = new Histogram();
+		for (int i=0; i < BUCKETS; i++) {
+			h.counts.set(i, this.counts.get(i));
+		}
+		h.count.set(this.count.get());
+		h.sum.set(this.sum.get());
+		h.max.set(this.max.get());
+		return h;
+	}
+	
+	
+	// clear all recorded values
+	public void reset() {
+		for (int i=0; i < BUCKETS; i++) {
+			this.counts.set(i, 0);
+		}
+		this.count.set(0);
+		this.sum.set(0);
+		this.max.set(0);
+	}
+	
+	
+	// index of the bucket counting value
+	private static int bucket(long value) {
+		if (value < LINEAR) return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BITS)) - SUB_COUNT;
+		return LINEAR + (exponent - SUB_BITS - 1) * SUB_COUNT + sub;
+	}
+	
+	
+	// largest value counted by a bucket
+	private static long upperBound(int bucket) {
+		if (bucket < LINEAR) return bucket;
+		int exponent = (bucket - LINEAR) / SUB_COUNT + SUB_BITS + 1;
+		long sub = (bucket - LINEAR) % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+}
@@ -1,6 +1,10 @@
 package htable.util;
 
+import java.nio.DoubleBuffer;
 import java.util.Random;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGenerator.SplittableGenerator;
+import java.util.random.RandomGeneratorFactory;
 
 public class Matrix {
 	
@@ -58,18 +62,53 @@ public class Matrix {
 	}
 	
 	
+	// create independent generators for parallel workers
+	// 
+	// the streams are split from a single L64X128MixRandom root so each
+	// worker can initialise networks without sharing RNG, and the i-th
+	// stream is the same for a given seed regardless of thread scheduling
+	public static SplittableGenerator[] randomStreams(long seed, int count) {
+		SplittableGenerator root = RandomGeneratorFactory.<SplittableGenerator>of("L64X128MixRandom").create(seed);
+		return root.splits(count).toArray(SplittableGenerator[]::new);
+	}
+	
+	
 	// create matrix populated with the random values
 	public static Matrix random(int height, int width) {
+		return random(height, width, RNG);
+	}
+	
+	
+	// create matrix populated with random values from a specific generator
+	public static Matrix random(int height, int width, RandomGenerator rng) {
 		Matrix m = new Matrix(height,width);
 		for (int i=0; i < height; i++) {
 			for (int j=0; j < width; j++) {
-				m.set(i, j, RNG.nextGaussian());
+				m.set(i, j, rng.nextGaussian());
 			}
 		}
 		return m;
 	}
 	
 	
+	// create matrix from height*width row major values read from a buffer
+	public static Matrix read(DoubleBuffer buffer, int height, int width) {
+		Matrix m = new Matrix(height,width);
+		for (int i=0; i < height; i++) {
+			buffer.get(m.values[i]);
+		}
+		return m;
+	}
+	
+	
+	// write the values of this instance to a buffer in row major order
+	public void write(DoubleBuffer buffer) {
+		for (int i=0; i < this.height; i++) {
+			buffer.put(this.values[i]);
+		}
+	}
+	
+	
 	// create identity matrix
 	public static Matrix identity(int size) {
 		Matrix m = new Matrix(size,size);
@@ -90,6 +129,16 @@ public class Matrix {
 	}
 	
 	
+	// copy of this instance
+	public Matrix copy() {
+		Matrix m = new Matrix(this.height,this.width);
+		for (int i=0; i < this.height; i++) {
+			System.arraycopy(this.values[i], 0, m.values[i], 0, this.width);
+		}
+		return m;
+	}
+	
+	
 	// result of addition of two matrices
 	public Matrix add(Matrix m) {
 		return add(this,m);
@@ -109,6 +158,26 @@ public class Matrix {
 	}
 	
 	
+	// result of adding a column vector to every column of a matrix
+	public Matrix addColumn(Matrix c) {
+		return addColumn(this,c);
+	}
+	public static Matrix addColumn(Matrix m1, Matrix c) {
+		
+		// handle shape exception
+		if (c.width != 1 || c.height != m1.height) throw new IllegalArgumentException("Incompatible matrix shapes.");
+		
+		Matrix m2 = new Matrix(m1.height, m1.width);
+		for (int i=0; i < m1.height; i++) {
+			double ci = c.get(i, 0);
+			for (int j=0; j < m1.width; j++) {
+				m2.set(i, j, m1.get(i,j) + ci);
+			}
+		}
+		return m2;
+	}
+	
+	
 	// result of element-wise addition of matrix and scalar
 	public Matrix add(double scalar) {
 		return add(this,scalar);
@@ -247,6 +316,47 @@ public class Matrix {
 	}
 	
 	
+	// result of dot product using only the first n columns of m1 and rows of m2
+	// 
+	// the remaining columns are skipped as if m2 held zeros in those rows,
+	// so for inputs padded with trailing zeros the cost scales with n
+	// rather than the full width of m1
+	public static Matrix dot(Matrix m1, Matrix m2, int n) {
+		
+		// handle shape exception
+		if (m1.width != m2.height || n < 0 || n > m1.width) throw new IllegalArgumentException("Incompatible matrix shapes.");
+		
+		Matrix m3 = Matrix.constant(m1.height, m2.width, 0);
+		for (int i=0; i < m1.height; i++) {
+			for (int j=0; j < m2.width; j++) {
+				for (int k=0; k < n; k++) {
+					m3.set(i, j, m3.get(i,j) + m1.get(i,k) * m2.get(k,j));
+				}
+			}
+		}
+		return m3;
+	}
+	
+	
+	// add the outer product of column vectors u and v to this instance,
+	// only touching the first n columns
+	// 
+	// equivalent to sum(dot(u, v.transpose())) when the remaining values
+	// of v are zero, without allocating the transpose or the product
+	public void sumOuter(Matrix u, Matrix v, int n) {
+		
+		// handle shape exception
+		if (u.width != 1 || v.width != 1 || u.height != this.height || v.height != this.width || n < 0 || n > this.width) throw new IllegalArgumentException("Incompatible matrix shapes.");
+		
+		for (int i=0; i < this.height; i++) {
+			double ui = u.get(i, 0);
+			for (int j=0; j < n; j++) {
+				this.set(i, j, this.get(i,j) + ui * v.get(j, 0));
+			}
+		}
+	}
+	
+	
 	// add the values of one matrix to the values of this instance
 	public void sum(Matrix m) {
 		
@@ -355,6 +465,70 @@ public class Matrix {
 	}
 	
 	
+	// row index of the maximum value in each column
+	public int[] columnMax() {
+		return columnMax(this);
+	}
+	public static int[] columnMax(Matrix m1) {
+		int[] max_index = new int[m1.width];
+		for (int j=0; j < m1.width; j++) {
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i=0; i < m1.height; i++) {
+				if (m1.get(i,j) > max) {
+					max = m1.get(i,j);
+					max_index[j] = i;
+				}
+			}
+		}
+		return max_index;
+	}
+	
+	
+	// column j as a column vector
+	public Matrix getColumn(int j) {
+		Matrix c = new Matrix(this.height, 1);
+		for (int i=0; i < this.height; i++) {
+			c.set(i, 0, this.get(i, j));
+		}
+		return c;
+	}
+	
+	
+	// row indices of the k largest values in a column vector, largest first
+	// 
+	// found by partial selection, keeping the best k values seen so far
+	// in sorted order, which is O(height * k) rather than a full sort
+	public int[] topK(int k) {
+		return topK(this, k);
+	}
+	public static int[] topK(Matrix m1, int k) {
+		
+		// handle shape exception
+		if (m1.width != 1) throw new IllegalArgumentException("Input must be column vector form");
+		if (k < 1) throw new IllegalArgumentException("k cannot be less than 1");
+		
+		k = Math.min(k, m1.height);
+		int[] index = new int[k];
+		double[] value = new double[k];
+		int found = 0;
+		for (int i=0; i < m1.height; i++) {
+			double v = m1.get(i, 0);
+			if (found == k && v <= value[k-1]) continue;
+			
+			// insert into sorted position, dropping the smallest if full
+			int j = (found < k) ? found++ : k-1;
+			while (j > 0 && value[j-1] < v) {
+				value[j] = value[j-1];
+				index[j] = index[j-1];
+				j--;
+			}
+			value[j] = v;
+			index[j] = i;
+		}
+		return index;
+	}
+	
+	
 	// the index holding the minimum value in a matrix
 	public int[] min() {
 		return min(this);
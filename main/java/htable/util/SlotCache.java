@@ -0,0 +1,146 @@
+package htable.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded cache of key to slot mappings with CLOCK eviction.
+// 
+// Every entry is tagged with the generation of the model that produced
+// its slot. A lookup with a different generation is a miss, so bumping
+// the generation invalidates the whole cache without clearing it and
+// stale entries are replaced as keys are looked up again.
+// 
+// Lookups are lock free and only set the reference bit of an entry.
+// Inserts are serialised and evict the first entry the clock hand finds
+// without its reference bit set, clearing reference bits as it passes.
+// 
+public class SlotCache {
+	
+	// cached mapping and its position in the ring
+	private static final class Entry {
+		final String key;
+		final int slot;
+		final long generation;
+		final int position;
+		volatile boolean referenced;
+		
+		Entry(String key, int slot, long generation, int position) {
+			this.key = key;
+			this.slot = slot;
+			this.generation = generation;
+			this.position = position;
+		}
+	}
+	
+	public final int capacity;
+	private final ConcurrentHashMap<String, Entry> entries;
+	private final Entry[] ring;
+	private int size;
+	private int hand;
+	
+	// statistics
+	private final LongAdder hits;
+	private final LongAdder misses;
+	
+	public SlotCache(int capacity) {
+		
+		// handle invalid parameters
+		if (capacity < 1) throw new IllegalArgumentException("Cache capacity cannot be less than 1");
+		
+		this.capacity = capacity;
+		this.entries = new ConcurrentHashMap<>(capacity * 2);
+		this.ring = new Entry[capacity];
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+	
+	
+	// slot of key for a generation, or -1 if not cached
+	public int get(String key, long generation) {
+		Entry entry = this.entries.get(key);
+		if (entry == null || entry.generation != generation) {
+			this.misses.increment();
+			return -1;
+		}
+		if (!entry.referenced) entry.referenced = true;
+		this.hits.increment();
+		return entry.slot;
+	}
+	
+	
+	// cache the slot of key for a generation
+	public synchronized void put(String key, int slot, long generation) {
+		
+		// replace an existing entry in place
+		Entry existing = this.entries.get(key);
+		if (existing != null) {
+			Entry entry = new Entry(key, slot, generation, existing.position);
+			this.ring[existing.position] = entry;
+			this.entries.put(key, entry);
+			return;
+		}
+		
+		// fill free positions before evicting
+		if (this.size < this.capacity) {
+			Entry entry = new Entry(key, slot, generation, this.size);
+			this.ring[this.size++] = entry;
+			this.entries.put(key, entry);
+			return;
+		}
+		
+		// advance the clock hand to an unreferenced entry
+		while (this.ring[this.hand].referenced) {
+			this.ring[this.hand].referenced = false;
+			this.hand = (this.hand + 1) % this.capacity;
+		}
+		this.entries.remove(this.ring[this.hand].key);
+		Entry entry = new Entry(key, slot, generation, this.hand);
+		this.ring[this.hand] = entry;
+		this.entries.put(key, entry);
+		this.hand = (this.hand + 1) % this.capacity;
+	}
+	
+	
+	// remove every entry
+	public synchronized void clear() {
+		this.entries.clear();
+		for (int i=0; i < this.size; i++) {
+			this.ring[i] = null;
+		}
+		this.size = 0;
+		this.hand = 0;
+	}
+	
+	
+	// number of cached entries
+	public int size() {
+		return this.entries.size();
+	}
+	
+	
+	// number of lookups that found a current entry
+	public long hits() {
+		return this.hits.sum();
+	}
+	
+	
+	// number of lookups that did not find a current entry
+	public long misses() {
+		return this.misses.sum();
+	}
+	
+	
+	// fraction of lookups that found a current entry
+	public double hitRate() {
+		long hits = this.hits.sum();
+		long total = hits + this.misses.sum();
+		return (total == 0) ? 0.0 : hits / (double)total;
+	}
+	
+	
+	// reset hit and miss counts
+	public void resetStatistics() {
+		this.hits.reset();
+		this.misses.reset();
+	}
+}
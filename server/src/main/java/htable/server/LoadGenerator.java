@@ -0,0 +1,133 @@
+package htable.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import htable.util.Histogram;
+
+// Load generator for a TableServer.
+// 
+// Inserts a set of keys with pipelined puts, which the server applies
+// in a few batches, then runs a number of connections that each keep up
+// to depth requests in flight. Requests are gets of a random inserted
+// key, or overwrites of one with the given write fraction, so the
+// measured writes do not retrain the network.
+// 
+// Prints the throughput and the latency percentiles of every request,
+// measured from sending a request to reading its response.
+// 
+//   java -cp server.jar htable.server.LoadGenerator
+//        <host:port|unix:path> [connections] [requests] [depth] [writes] [keys]
+// 
+public class LoadGenerator {
+	
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: LoadGenerator <host:port|unix:path> [connections] [requests] [depth] [writes] [keys]");
+			System.exit(1);
+		}
+		String address = args[0];
+		int connections = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+		int requests = (args.length > 2) ? Integer.parseInt(args[2]) : 100_000;
+		int depth = (args.length > 3) ? Integer.parseInt(args[3]) : 16;
+		double writes = (args.length > 4) ? Double.parseDouble(args[4]) : 0.1;
+		int count = (args.length > 5) ? Integer.parseInt(args[5]) : 16;
+		
+		// insert keys
+		String[] keys = keys(count, 8, 42L);
+		long start = System.nanoTime();
+		try (TableClient client = new TableClient(address)) {
+			for (String key : keys) {
+				client.sendPut(key, key.getBytes(StandardCharsets.UTF_8));
+			}
+			while (client.outstanding() > 0) {
+				TableClient.Response response = client.receive();
+				
+				// records are inserted even if training did not converge
+				if (response.status == TableClient.ERROR) System.err.println(response.message);
+				else if (!response.ok()) throw new IllegalStateException("Failed to insert keys, "+response.message);
+			}
+		}
+		System.out.printf("inserted %d keys in %.1f ms%n", count, (System.nanoTime() - start) / 1e6);
+		
+		// run connections
+		Histogram latency = new Histogram();
+		AtomicLong errors = new AtomicLong();
+		Thread[] threads = new Thread[connections];
+		for (int c=0; c < connections; c++) {
+			long seed = c;
+			threads[c] = new Thread(() -> {
+				try {
+					run(address, keys, requests, depth, writes, seed, latency, errors);
+				} catch (IOException e) {
+					System.err.println("Warning: connection failed, "+e.getMessage());
+				}
+			});
+		}
+		start = System.nanoTime();
+		for (Thread thread : threads) thread.start();
+		for (Thread thread : threads) thread.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		// report
+		System.out.printf("requests=%d connections=%d depth=%d writes=%.2f%n", latency.count(), connections, depth, writes);
+		System.out.printf("throughput=%.0f ops/s errors=%d%n", latency.count() / seconds, errors.get());
+		System.out.printf("latency us: mean=%.1f p50=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+				latency.mean() / 1e3, latency.percentile(50) / 1e3, latency.percentile(99) / 1e3,
+				latency.percentile(99.9) / 1e3, latency.max() / 1e3);
+	}
+	
+	
+	// issue requests on one connection with up to depth in flight
+	private static void run(String address, String[] keys, int requests, int depth, double writes,
+			long seed, Histogram latency, AtomicLong errors) throws IOException {
+		SplittableRandom random = new SplittableRandom(seed);
+		ArrayDeque<Long> sent = new ArrayDeque<>();
+		try (TableClient client = new TableClient(address)) {
+			int issued = 0;
+			while (issued < requests || client.outstanding() > 0) {
+				
+				// fill the pipeline
+				while (issued < requests && client.outstanding() < depth) {
+					String key = keys[random.nextInt(keys.length)];
+					if (random.nextDouble() < writes) {
+						client.sendPut(key, key.getBytes(StandardCharsets.UTF_8));
+					} else {
+						client.sendGet(key);
+					}
+					sent.add(System.nanoTime());
+					issued++;
+				}
+				client.flush();
+				
+				// read the oldest response
+				TableClient.Response response = client.receive();
+				latency.record(System.nanoTime() - sent.poll());
+				if (!response.ok()) errors.incrementAndGet();
+			}
+		}
+	}
+	
+	
+	// distinct random alphanumeric keys with lengths in [1, keyLimit]
+	private static String[] keys(int count, int keyLimit, long seed) {
+		SplittableRandom random = new SplittableRandom(seed);
+		Set<String> keys = new LinkedHashSet<>();
+		while (keys.size() < count) {
+			int length = 1 + random.nextInt(keyLimit);
+			StringBuilder sb = new StringBuilder(length);
+			for (int j=0; j < length; j++) {
+				sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			}
+			keys.add(sb.toString());
+		}
+		return keys.toArray(new String[0]);
+	}
+}
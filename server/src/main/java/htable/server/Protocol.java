@@ -0,0 +1,135 @@
+package htable.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+// Binary protocol shared by TableServer and TableClient.
+// 
+// Requests and responses are big endian. Strings are an int length and
+// UTF-8 bytes, values are an int length and raw bytes with length -1
+// for null values.
+// 
+//   GET      byte 1, key
+//   PUT      byte 2, key, value
+//   DELETE   byte 3, key
+//   GET_ALL  byte 4, int count, count keys
+// 
+// Every request gets one response, in the order the requests were sent,
+// so clients can pipeline requests without waiting for responses.
+// A response starts with a status byte:
+// 
+//   OK          followed by the value for GET, and for GET_ALL an int
+//               count then a found byte (1 or 0) and value for each key
+//   NOT_FOUND   the key is not in the table
+//   INVALID     followed by a message, the request was malformed
+//   FULL        followed by a message, the table is full
+//   ERROR       followed by a message, the operation was applied but the
+//               network did not converge
+// 
+final class Protocol {
+	
+	// operations
+	static final byte GET = 1;
+	static final byte PUT = 2;
+	static final byte DELETE = 3;
+	static final byte GET_ALL = 4;
+	
+	// statuses
+	static final byte OK = 0;
+	static final byte NOT_FOUND = 1;
+	static final byte INVALID = 2;
+	static final byte FULL = 3;
+	static final byte ERROR = 4;
+	
+	// largest string, value or key count accepted
+	static final int MAX_LENGTH = 1 << 26;
+	
+	private Protocol() {}
+	
+	
+	// address from host:port, :port or unix:path
+	static SocketAddress address(String address) {
+		if (address.startsWith("unix:")) return UnixDomainSocketAddress.of(Path.of(address.substring(5)));
+		int split = address.lastIndexOf(':');
+		if (split < 0) throw new IllegalArgumentException("Address must be host:port or unix:path");
+		String host = (split == 0) ? "localhost" : address.substring(0, split);
+		return new InetSocketAddress(host, Integer.parseInt(address.substring(split+1)));
+	}
+	
+	
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = readBytes(in);
+		if (bytes == null) throw new IOException("Malformed request, null string");
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	
+	static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	
+	static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1) return null;
+		if (length < 0 || length > MAX_LENGTH) throw new IOException("Malformed request, length "+length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+	
+	
+	// buffered input from a blocking channel
+	//
+	// the channel is read directly rather than through Channels.newInputStream
+	// so one thread can read while another writes to the same channel
+	static DataInputStream input(SocketChannel channel) {
+		return new DataInputStream(new BufferedInputStream(new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (this.read(b, 0, 1) < 0) ? -1 : b[0] & 0xFF;
+			}
+			public int read(byte[] b, int off, int len) throws IOException {
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+		}, 1 << 16));
+	}
+	
+	
+	// buffered output to a blocking channel
+	static DataOutputStream output(SocketChannel channel) {
+		return new DataOutputStream(new BufferedOutputStream(new OutputStream() {
+			public void write(int b) throws IOException {
+				this.write(new byte[] {(byte)b}, 0, 1);
+			}
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		}, 1 << 16));
+	}
+}
@@ -0,0 +1,203 @@
+package htable.server;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+// Client for a TableServer connection.
+// 
+// The send methods write a request without waiting for its response,
+// flush sends every written request and receive reads the response to
+// the oldest outstanding request, so many requests can be in flight on
+// one connection. The get, put, delete and getAll methods send one
+// request and wait for its response.
+// 
+// A client is not thread safe, use one client per thread.
+// 
+public class TableClient implements Closeable {
+	
+	// statuses
+	public static final byte OK = Protocol.OK;
+	public static final byte NOT_FOUND = Protocol.NOT_FOUND;
+	public static final byte INVALID = Protocol.INVALID;
+	public static final byte FULL = Protocol.FULL;
+	public static final byte ERROR = Protocol.ERROR;
+	
+	private final SocketChannel channel;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final ArrayDeque<Byte> outstanding;
+	
+	public TableClient(SocketAddress address) throws IOException {
+		this.channel = (address instanceof UnixDomainSocketAddress)
+				? SocketChannel.open(StandardProtocolFamily.UNIX)
+				: SocketChannel.open();
+		this.channel.connect(address);
+		this.in = Protocol.input(this.channel);
+		this.out = Protocol.output(this.channel);
+		this.outstanding = new ArrayDeque<>();
+	}
+	
+	
+	// constructor from host:port, :port or unix:path
+	public TableClient(String address) throws IOException {
+		this(Protocol.address(address));
+	}
+	
+	
+	public void sendGet(String key) throws IOException {
+		this.out.writeByte(Protocol.GET);
+		Protocol.writeString(this.out, key);
+		this.outstanding.add(Protocol.GET);
+	}
+	
+	
+	public void sendPut(String key, byte[] value) throws IOException {
+		this.out.writeByte(Protocol.PUT);
+		Protocol.writeString(this.out, key);
+		Protocol.writeBytes(this.out, value);
+		this.outstanding.add(Protocol.PUT);
+	}
+	
+	
+	public void sendDelete(String key) throws IOException {
+		this.out.writeByte(Protocol.DELETE);
+		Protocol.writeString(this.out, key);
+		this.outstanding.add(Protocol.DELETE);
+	}
+	
+	
+	public void sendGetAll(Collection<String> keys) throws IOException {
+		this.out.writeByte(Protocol.GET_ALL);
+		this.out.writeInt(keys.size());
+		for (String key : keys) {
+			Protocol.writeString(this.out, key);
+		}
+		this.outstanding.add(Protocol.GET_ALL);
+	}
+	
+	
+	// send written requests
+	public void flush() throws IOException {
+		this.out.flush();
+	}
+	
+	
+	// number of requests without a response
+	public int outstanding() {
+		return this.outstanding.size();
+	}
+	
+	
+	// read the response to the oldest outstanding request, flushing first if needed
+	public Response receive() throws IOException {
+		Byte op = this.outstanding.poll();
+		if (op == null) throw new IllegalStateException("No outstanding requests");
+		this.out.flush();
+		byte status = this.in.readByte();
+		if (status == Protocol.INVALID || status == Protocol.FULL || status == Protocol.ERROR) {
+			return new Response(status, null, null, null, Protocol.readString(this.in));
+		}
+		if (status != Protocol.OK) return new Response(status, null, null, null, null);
+		if (op == Protocol.GET) return new Response(status, Protocol.readBytes(this.in), null, null, null);
+		if (op == Protocol.GET_ALL) {
+			int count = this.in.readInt();
+			boolean[] found = new boolean[count];
+			byte[][] values = new byte[count][];
+			for (int i=0; i < count; i++) {
+				found[i] = this.in.readByte() == 1;
+				if (found[i]) values[i] = Protocol.readBytes(this.in);
+			}
+			return new Response(status, null, found, values, null);
+		}
+		return new Response(status, null, null, null, null);
+	}
+	
+	
+	public Response get(String key) throws IOException {
+		this.sendGet(key);
+		return this.last();
+	}
+	
+	
+	public Response put(String key, byte[] value) throws IOException {
+		this.sendPut(key, value);
+		return this.last();
+	}
+	
+	
+	public Response put(String key, String value) throws IOException {
+		return this.put(key, value.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	
+	public Response delete(String key) throws IOException {
+		this.sendDelete(key);
+		return this.last();
+	}
+	
+	
+	public Response getAll(Collection<String> keys) throws IOException {
+		this.sendGetAll(keys);
+		return this.last();
+	}
+	
+	
+	public void close() throws IOException {
+		this.channel.close();
+	}
+	
+	
+	// response to the request just sent, discarding earlier outstanding responses
+	private Response last() throws IOException {
+		while (this.outstanding.size() > 1) {
+			this.receive();
+		}
+		return this.receive();
+	}
+	
+	
+	// response to a request
+	public static final class Response {
+		
+		// one of the status constants
+		public final byte status;
+		
+		// value of a GET
+		public final byte[] value;
+		
+		// found flags and values of a GET_ALL, by key position
+		public final boolean[] found;
+		public final byte[][] values;
+		
+		// message of an INVALID, FULL or ERROR status
+		public final String message;
+		
+		Response(byte status, byte[] value, boolean[] found, byte[][] values, String message) {
+			this.status = status;
+			this.value = value;
+			this.found = found;
+			this.values = values;
+			this.message = message;
+		}
+		
+		
+		public boolean ok() {
+			return this.status == OK;
+		}
+		
+		
+		// value of a GET as a UTF-8 string
+		public String string() {
+			return (this.value == null) ? null : new String(this.value, StandardCharsets.UTF_8);
+		}
+	}
+}
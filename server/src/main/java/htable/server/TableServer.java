@@ -0,0 +1,423 @@
+package htable.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import htable.NNHashTable;
+import htable.network.DenseNetwork;
+
+// Key value server exposing an NNHashTable over TCP or unix domain sockets.
+// 
+// Each connection is served by two threads, one reading requests and
+// one writing responses in request order, so clients can pipeline
+// requests. Responses are flushed once no more are ready.
+// 
+// Reads are answered on the reading thread under a shared lock. Puts
+// and deletes from every connection are queued for a single writer
+// thread, which drains the queue and applies everything queued with
+// one putAll or deleteAll per run of consecutive puts or deletes, so
+// concurrent writes share a training pass rather than each retraining
+// the network.
+// 
+// Values are stored as byte[], String values already in the table are
+// returned as their UTF-8 bytes.
+// 
+public class TableServer implements Closeable {
+	
+	// largest number of writes applied together
+	private static final int MAX_BATCH = 4096;
+	
+	// stored in place of a value to tell absent keys from null values
+	private static final Object ABSENT = new Object();
+	
+	// table
+	private final NNHashTable table;
+	private final ReadWriteLock lock;
+	
+	// connections
+	private final ServerSocketChannel server;
+	private final ExecutorService threads;
+	private final List<SocketChannel> connections;
+	
+	// coalesced writes
+	private final BlockingQueue<Write> writes;
+	private volatile boolean running;
+	
+	public TableServer(NNHashTable table, SocketAddress address) throws IOException {
+		this.table = table;
+		this.lock = new ReentrantReadWriteLock();
+		this.connections = new ArrayList<>();
+		this.writes = new LinkedBlockingQueue<>();
+		
+		// bind, replacing a stale unix socket file
+		if (address instanceof UnixDomainSocketAddress) {
+			Files.deleteIfExists(((UnixDomainSocketAddress)address).getPath());
+			this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			this.server = ServerSocketChannel.open();
+		}
+		this.server.bind(address);
+		
+		this.threads = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "table-server");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	
+	// start accepting connections
+	public synchronized void start() {
+		if (this.running) return;
+		this.running = true;
+		this.threads.execute(this::accept);
+		this.threads.execute(this::write);
+	}
+	
+	
+	// bound address, which holds the chosen port when bound to port 0
+	public SocketAddress address() throws IOException {
+		return this.server.getLocalAddress();
+	}
+	
+	
+	// stop accepting connections and close open connections
+	public void close() throws IOException {
+		this.running = false;
+		SocketAddress address = this.server.getLocalAddress();
+		this.server.close();
+		synchronized (this.connections) {
+			for (SocketChannel connection : this.connections) {
+				connection.close();
+			}
+		}
+		this.threads.shutdownNow();
+		
+		// fail writes that will not be applied
+		for (Write write = this.writes.poll(); write != null; write = this.writes.poll()) {
+			write.result.complete(status(Protocol.ERROR, "Server closed"));
+		}
+		if (address instanceof UnixDomainSocketAddress) Files.deleteIfExists(((UnixDomainSocketAddress)address).getPath());
+	}
+	
+	
+	// accept connections until closed
+	private void accept() {
+		while (this.running) {
+			try {
+				SocketChannel connection = this.server.accept();
+				synchronized (this.connections) {
+					this.connections.add(connection);
+				}
+				this.threads.execute(() -> this.serve(connection));
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				System.err.println("Warning: failed to accept connection, "+e.getMessage());
+			}
+		}
+	}
+	
+	
+	// read requests from a connection and queue their responses in order
+	private void serve(SocketChannel connection) {
+		BlockingQueue<CompletableFuture<byte[]>> responses = new LinkedBlockingQueue<>();
+		this.threads.execute(() -> this.respond(connection, responses));
+		try {
+			DataInputStream in = Protocol.input(connection);
+			while (this.running) {
+				byte op;
+				try {
+					op = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				responses.put(this.request(op, in));
+			}
+		} catch (IOException | RuntimeException e) {
+			if (this.running && connection.isOpen()) System.err.println("Warning: closing connection, "+e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			
+			// stop the responder once every queued response is written
+			responses.add(CompletableFuture.completedFuture(null));
+		}
+	}
+	
+	
+	// write responses in request order, flushing when no more are ready
+	private void respond(SocketChannel connection, BlockingQueue<CompletableFuture<byte[]>> responses) {
+		try (connection) {
+			DataOutputStream out = Protocol.output(connection);
+			while (true) {
+				byte[] response = responses.take().join();
+				if (response == null) break;
+				out.write(response);
+				if (responses.isEmpty() || !responses.peek().isDone()) out.flush();
+			}
+			out.flush();
+		} catch (IOException e) {
+			if (this.running) System.err.println("Warning: failed to write response, "+e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			synchronized (this.connections) {
+				this.connections.remove(connection);
+			}
+		}
+	}
+	
+	
+	// read a request, answering reads immediately and queueing writes
+	private CompletableFuture<byte[]> request(byte op, DataInputStream in) throws IOException {
+		switch (op) {
+		case Protocol.GET: {
+			String key = Protocol.readString(in);
+			return CompletableFuture.completedFuture(this.get(key));
+		}
+		case Protocol.GET_ALL: {
+			int count = in.readInt();
+			if (count < 0 || count > Protocol.MAX_LENGTH) throw new IOException("Malformed request, count "+count);
+			String[] keys = new String[count];
+			for (int i=0; i < count; i++) {
+				keys[i] = Protocol.readString(in);
+			}
+			return CompletableFuture.completedFuture(this.getAll(keys));
+		}
+		case Protocol.PUT:
+		case Protocol.DELETE: {
+			String key = Protocol.readString(in);
+			byte[] value = (op == Protocol.PUT) ? Protocol.readBytes(in) : null;
+			if (!this.valid(key)) return CompletableFuture.completedFuture(status(Protocol.INVALID, "Invalid key \""+key+"\""));
+			Write write = new Write(op, key, value);
+			this.writes.add(write);
+			return write.result;
+		}
+		default:
+			throw new IOException("Malformed request, unknown operation "+op);
+		}
+	}
+	
+	
+	private byte[] get(String key) throws IOException {
+		if (!this.valid(key)) return status(Protocol.INVALID, "Invalid key \""+key+"\"");
+		Object value;
+		this.lock.readLock().lock();
+		try {
+			value = this.table.getOrDefault(key, ABSENT);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		if (value == ABSENT) return status(Protocol.NOT_FOUND, null);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(Protocol.OK);
+		Protocol.writeBytes(out, encode(value));
+		return bytes.toByteArray();
+	}
+	
+	
+	private byte[] getAll(String[] keys) throws IOException {
+		Map<String, Object> found;
+		this.lock.readLock().lock();
+		try {
+			found = this.table.getAll(Arrays.asList(keys));
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(Protocol.OK);
+		out.writeInt(keys.length);
+		for (String key : keys) {
+			boolean present = found.containsKey(key);
+			out.writeByte(present ? 1 : 0);
+			if (present) Protocol.writeBytes(out, encode(found.get(key)));
+		}
+		return bytes.toByteArray();
+	}
+	
+	
+	// apply queued writes in batches until closed
+	private void write() {
+		List<Write> batch = new ArrayList<>();
+		while (this.running) {
+			try {
+				batch.add(this.writes.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			this.writes.drainTo(batch, MAX_BATCH - 1);
+			this.lock.writeLock().lock();
+			try {
+				this.apply(batch);
+			} catch (RuntimeException e) {
+				for (Write write : batch) {
+					write.result.complete(status(Protocol.ERROR, String.valueOf(e.getMessage())));
+				}
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+			batch.clear();
+		}
+	}
+	
+	
+	// apply each run of consecutive puts or deletes with a single update
+	private void apply(List<Write> batch) {
+		int start = 0;
+		while (start < batch.size()) {
+			byte op = batch.get(start).op;
+			int end = start;
+			while (end < batch.size() && batch.get(end).op == op) end++;
+			List<Write> run = batch.subList(start, end);
+			if (op == Protocol.PUT) {
+				this.putAll(run);
+			} else {
+				this.deleteAll(run);
+			}
+			start = end;
+		}
+	}
+	
+	
+	private void putAll(List<Write> run) {
+		Map<String, Object> records = new LinkedHashMap<>();
+		for (Write write : run) {
+			records.put(write.key, write.value);
+		}
+		try {
+			this.table.putAll(records);
+			complete(run, status(Protocol.OK, null));
+		} catch (ArrayIndexOutOfBoundsException e) {
+			
+			// insert records one at a time until the table is full
+			for (Write write : run) {
+				try {
+					this.table.put(write.key, write.value);
+					write.result.complete(status(Protocol.OK, null));
+				} catch (ArrayIndexOutOfBoundsException full) {
+					write.result.complete(status(Protocol.FULL, full.getMessage()));
+				} catch (IllegalStateException converge) {
+					write.result.complete(status(Protocol.ERROR, converge.getMessage()));
+				}
+			}
+		} catch (IllegalStateException e) {
+			complete(run, status(Protocol.ERROR, e.getMessage()));
+		}
+	}
+	
+	
+	private void deleteAll(List<Write> run) {
+		List<String> keys = new ArrayList<>();
+		for (Write write : run) {
+			keys.add(write.key);
+		}
+		Set<String> present = new HashSet<>(this.table.getAll(keys).keySet());
+		byte[] result;
+		try {
+			this.table.deleteAll(keys);
+			result = status(Protocol.OK, null);
+		} catch (IllegalStateException e) {
+			result = status(Protocol.ERROR, e.getMessage());
+		}
+		for (Write write : run) {
+			
+			// repeated deletes of a key only find it once
+			write.result.complete(present.remove(write.key) ? result : status(Protocol.NOT_FOUND, null));
+		}
+	}
+	
+	
+	private boolean valid(String key) {
+		return !key.isEmpty() && key.length() <= this.table.keyLimit;
+	}
+	
+	
+	private static void complete(List<Write> run, byte[] result) {
+		for (Write write : run) {
+			write.result.complete(result);
+		}
+	}
+	
+	
+	// response of a status and optional message
+	private static byte[] status(byte status, String message) {
+		if (message == null) return new byte[] {status};
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		byte[] response = new byte[5 + text.length];
+		response[0] = status;
+		response[1] = (byte)(text.length >>> 24);
+		response[2] = (byte)(text.length >>> 16);
+		response[3] = (byte)(text.length >>> 8);
+		response[4] = (byte)text.length;
+		System.arraycopy(text, 0, response, 5, text.length);
+		return response;
+	}
+	
+	
+	// wire form of a stored value
+	private static byte[] encode(Object value) {
+		if (value == null || value instanceof byte[]) return (byte[])value;
+		return value.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	
+	// queued put or delete
+	private static final class Write {
+		final byte op;
+		final String key;
+		final byte[] value;
+		final CompletableFuture<byte[]> result;
+		
+		Write(byte op, String key, byte[] value) {
+			this.op = op;
+			this.key = key;
+			this.value = value;
+			this.result = new CompletableFuture<>();
+		}
+	}
+	
+	
+	// run a server for an empty table
+	// arguments: address (host:port or unix:path), keyLimit, capacity
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 3) {
+			System.err.println("Usage: TableServer <host:port|unix:path> <keyLimit> <capacity>");
+			System.exit(1);
+		}
+		DenseNetwork.setLogging(false);
+		NNHashTable table = new NNHashTable(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+		TableServer server = new TableServer(table, Protocol.address(args[0]));
+		server.start();
+		System.out.println("Serving on "+server.address());
+		Thread.currentThread().join();
+	}
+}
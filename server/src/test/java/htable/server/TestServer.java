@@ -0,0 +1,80 @@
+package htable.server;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htable.NNHashTable;
+import htable.network.DenseNetwork;
+
+public class TestServer {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	// test operations over tcp
+	@Test
+	public void testTcp() throws Exception {
+		DenseNetwork.setLogging(false);
+		try (TableServer server = new TableServer(this.table(), new InetSocketAddress("localhost", 0))) {
+			server.start();
+			this.operations(server.address());
+		}
+	}
+	
+	// test operations over a unix domain socket
+	@Test
+	public void testUnix() throws Exception {
+		DenseNetwork.setLogging(false);
+		SocketAddress address = UnixDomainSocketAddress.of(folder.getRoot().toPath().resolve("table.sock"));
+		try (TableServer server = new TableServer(this.table(), address)) {
+			server.start();
+			this.operations(server.address());
+		}
+	}
+	
+	// table with enough training steps to map every key whichever way the puts are batched
+	private NNHashTable table() {
+		return new NNHashTable(20, 10, 100_000, 0, 1.0, new SplittableRandom(42L));
+	}
+	
+	private void operations(SocketAddress address) throws Exception {
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		try (TableClient client = new TableClient(address)) {
+			
+			// pipelined puts are applied together
+			for (int i=0; i < ref_keys.length; i++) {
+				client.sendPut(ref_keys[i], new byte[] {(byte)i});
+			}
+			while (client.outstanding() > 0) {
+				TableClient.Response r = client.receive();
+				assertTrue(r.status+" "+r.message, r.ok());
+			}
+			
+			// get data
+			for (int i=0; i < ref_keys.length; i++) {
+				assertArrayEquals(new byte[] {(byte)i}, client.get(ref_keys[i]).value);
+			}
+			assertEquals(TableClient.NOT_FOUND, client.get("missing").status);
+			assertEquals(TableClient.INVALID, client.get("a key longer than the limit").status);
+			
+			// table full
+			assertEquals(TableClient.FULL, client.put("extra", "value").status);
+			
+			// delete and batched lookup
+			assertTrue(client.delete("emu").ok());
+			assertEquals(TableClient.NOT_FOUND, client.delete("emu").status);
+			TableClient.Response all = client.getAll(List.of("sb7", "emu", "012"));
+			assertArrayEquals(new boolean[] {true, false, true}, all.found);
+			assertArrayEquals(new byte[] {9}, all.values[0]);
+		}
+	}
+}
@@ -2,14 +2,42 @@ package htable;
 
 import static org.junit.Assert.*;
 
+import java.io.NotSerializableException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import htable.MultiTenantNNHashTable;
 import htable.NNHashTable;
+import htable.Replica;
+import htable.ReplicationPrimary;
+import htable.SharedNNHashTable;
+import htable.TableProfile;
+import htable.TableTuner;
+import htable.metrics.TableMetrics;
 import htable.util.Matrix;
+import htable.util.SlotCache;
 
 public class TestNNHT {
 	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
 	@Before
 	public void setUp() throws Exception {
 		// set RNG seed for network parameter initialisation
@@ -192,4 +220,744 @@ public class TestNNHT {
 		NNHashTable h = new NNHashTable(5, 10);
 		h.put("a_key_longer_than_5", false);
 	}
+	
+	// test that metrics record operations and misses once enabled
+	@Test
+	public void testMetrics() {
+		
+		// create hash table with metrics, seeded since every put must converge
+		NNHashTable h = new NNHashTable(5, 3, 10_000, 0, 1.0, new SplittableRandom(11L));
+		TableMetrics metrics = h.enableMetrics();
+		
+		// insert and retrieve data
+		h.put("a", 1);
+		h.put("b", 2);
+		assertEquals(1, (int)h.get("a"));
+		
+		// get a record that doesn't exist
+		try {
+			h.get("c");
+			fail("Expected missing key to throw");
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// expected
+		}
+		
+		// check recorded values
+		TableMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(2, snapshot.latency(TableMetrics.PUT).count());
+		assertEquals(2, snapshot.latency(TableMetrics.GET).count());
+		assertEquals(2, snapshot.latency(TableMetrics.UPDATE).count());
+		assertEquals(1, snapshot.misses);
+		assertEquals(0.5, snapshot.missRate(), 1e-9);
+		assertTrue(snapshot.latency(TableMetrics.PUT).percentile(99) > 0);
+		
+		// every key of a batch is recorded as a get
+		assertArrayEquals(new Object[] {2, null, null}, h.getAll(new String[] {"b", "c", "d"}));
+		assertEquals(5, metrics.getGetCount());
+		assertEquals(3, metrics.getMisses());
+		assertEquals(0.6, metrics.getMissRate(), 1e-9);
+		
+		// check disabling stops recording
+		h.disableMetrics();
+		h.get("b");
+		assertEquals(5, metrics.getGetCount());
+	}
+	
+	// test that a table restored from a snapshot serves the same records
+	@Test
+	public void testSnapshot() throws Exception {
+		
+		// create hash table
+		NNHashTable h = new NNHashTable(20, 5);
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog"};
+		String[] ref_values = new String[] {"the","long","brown","fox ","jumped"};
+		for (int i=0; i < ref_keys.length; i++) {
+			h.put(ref_keys[i], ref_values[i]);
+		}
+		h.put("ABC", null);
+		
+		// save and load
+		Path file = folder.newFile("table.nnht").toPath();
+		h.save(file);
+		NNHashTable loaded = NNHashTable.load(file);
+		
+		// get data
+		assertEquals(ref_keys.length, loaded.totalRecords());
+		assertNull(loaded.get("ABC"));
+		for (int i=0; i < ref_keys.length; i++) {
+			if (!ref_keys[i].equals("ABC")) assertEquals(ref_values[i], (String)loaded.get(ref_keys[i]));
+		}
+		
+		// check the loaded table can still be updated and saved again
+		loaded.delete("gddog");
+		loaded.save(file);
+		assertEquals(4, NNHashTable.load(file).totalRecords());
+		assertEquals("the", (String)NNHashTable.load(file).get("012"));
+		
+		// a failed save leaves the previous snapshot and no temporary file
+		h.put("012", new Object());
+		try {
+			h.save(file);
+			fail("unserialisable value was saved");
+		} catch (NotSerializableException e) {
+			// expected
+		}
+		assertFalse(Files.exists(file.resolveSibling(file.getFileName()+".tmp")));
+		assertEquals(4, NNHashTable.load(file).totalRecords());
+	}
+	
+	// test inserting records with a single update
+	@Test
+	public void testPutAll() {
+		
+		// create hash table
+		NNHashTable h = new NNHashTable(20, 5);
+		
+		// insert data
+		Map<String, String> records = new LinkedHashMap<>();
+		records.put("012", "the");
+		records.put("ABC", "long");
+		records.put("XwdYZ", "brown");
+		h.putAll(records);
+		
+		// get data
+		assertEquals(3, h.totalRecords());
+		for (Map.Entry<String, String> record : records.entrySet()) {
+			assertEquals(record.getValue(), (String)h.get(record.getKey()));
+		}
+	}
+	
+	// test that a durable table recovers records from its log and snapshot
+	@Test
+	public void testRecovery() throws Exception {
+		Path directory = folder.newFolder("durable").toPath();
+		
+		// insert data without a checkpoint
+		try (DurableNNHashTable h = new DurableNNHashTable(directory, 20, 5, WriteAheadLog.Sync.GROUP)) {
+			h.put("012", "the");
+			h.put("ABC", "long");
+			h.put("XwdYZ", "brown");
+			h.delete("ABC");
+		}
+		
+		// recover from the log, then checkpoint and insert more data
+		try (DurableNNHashTable h = new DurableNNHashTable(directory, 20, 5, WriteAheadLog.Sync.ALWAYS)) {
+			assertEquals(2, h.totalRecords());
+			assertEquals("brown", (String)h.get("XwdYZ"));
+			h.checkpoint();
+			h.put("gddog", "jumped");
+		}
+		
+		// simulate a crash part way through appending a record
+		Files.write(directory.resolve(DurableNNHashTable.LOG), new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+		
+		// recover from the snapshot and log
+		try (DurableNNHashTable h = new DurableNNHashTable(directory, 20, 5, WriteAheadLog.Sync.NEVER)) {
+			assertEquals(3, h.totalRecords());
+			assertEquals("the", (String)h.get("012"));
+			assertEquals("jumped", (String)h.get("gddog"));
+		}
+		
+		// records logged without converging are recovered the same way
+		Path unconverged = folder.newFolder("unconverged").toPath();
+		try (DurableNNHashTable h = new DurableNNHashTable(unconverged, 20, 5, 1, 0, 1.0, WriteAheadLog.Sync.NEVER)) {
+			for (String key : new String[] {"012", "ABC", "XwdYZ"}) {
+				try {
+					h.put(key, key);
+				} catch (IllegalStateException e) {}
+			}
+		}
+		try (DurableNNHashTable h = new DurableNNHashTable(unconverged, 20, 5, 1, 0, 1.0, WriteAheadLog.Sync.NEVER)) {
+			assertEquals(3, h.totalRecords());
+			assertTrue(h.pending());
+			for (String key : new String[] {"012", "ABC", "XwdYZ"}) {
+				assertEquals(key, h.get(key));
+			}
+		}
+		
+		// background checkpoints of pending tables fail and are reported on close
+		DurableNNHashTable d = new DurableNNHashTable(unconverged, 20, 5, 1, 0, 1.0, WriteAheadLog.Sync.NEVER);
+		d.startCheckpoints(1, TimeUnit.MILLISECONDS);
+		for (int i=0; i < 1000 && d.checkpointFailure() == null; i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(d.checkpointFailure() instanceof IllegalStateException);
+		try {
+			d.close();
+			fail("Failed checkpoint was not reported");
+		} catch (IllegalStateException e) {}
+	}
+	
+	// test bulk loading records from delimited and length prefixed files
+	@Test
+	public void testLoader() throws Exception {
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		String[] ref_values = new String[] {"the","long","brown","fox ","jumped","over","the","tall","red","gate."};
+		
+		// delimited file with an empty line, a crlf line break, a repeated key and no final line break
+		StringBuilder text = new StringBuilder();
+		for (int i=0; i < ref_keys.length; i++) {
+			text.append(ref_keys[i]).append('\t').append(ref_values[i]).append((i == 3) ? "\r\n\n" : "\n");
+		}
+		text.append("emu\tunder");
+		Path delimited = folder.newFile("records.tsv").toPath();
+		Files.writeString(delimited, text);
+		
+		// load in small windows, training every 4 records
+		NNHashTable h = new NNHashTable(20, 10);
+		long[] progress = new long[2];
+		int count = new TableLoader(h).window(32).chunk(4).progress((read, total, records) -> {
+			progress[0] = read;
+			progress[1] = records;
+		}).load(delimited);
+		assertEquals(11, count);
+		assertEquals(Files.size(delimited), progress[0]);
+		assertEquals(11, progress[1]);
+		assertEquals(10, h.totalRecords());
+		assertEquals("fox ", h.get("a longer key value"));
+		assertEquals("under", h.get("emu"));
+		
+		// length prefixed file
+		java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+		java.io.DataOutputStream out = new java.io.DataOutputStream(bytes);
+		for (int i=0; i < ref_keys.length; i++) {
+			byte[] key = ref_keys[i].getBytes("UTF-8");
+			out.writeInt(key.length);
+			out.write(key);
+			out.writeInt(1);
+			out.writeByte(i);
+		}
+		Path prefixed = folder.newFile("records.bin").toPath();
+		Files.write(prefixed, bytes.toByteArray());
+		
+		// load and train once, seeded since all keys are fitted from the initial network
+		NNHashTable p = new NNHashTable(20, 10, 10_000, 0, 1.0, new SplittableRandom(11L));
+		assertEquals(10, new TableLoader(p).lengthPrefixed().load(prefixed));
+		for (int i=0; i < ref_keys.length; i++) {
+			assertArrayEquals(new byte[] {(byte)i}, (byte[])p.get(ref_keys[i]));
+		}
+		
+		// records before a malformed record are kept with training pending
+		Path malformed = folder.newFile("malformed.tsv").toPath();
+		Files.writeString(malformed, "alpha\t1\nbeta\t2\n\tno key\n");
+		NNHashTable m = new NNHashTable(20, 10, 10_000, 0, 1.0, new SplittableRandom(11L));
+		try {
+			new TableLoader(m).load(malformed);
+			fail("Malformed record was loaded");
+		} catch (java.io.IOException e) {}
+		assertTrue(m.pending());
+		assertEquals("1", m.get("alpha"));
+		m.put("alpha", "one");
+		assertEquals(2, m.totalRecords());
+		assertTrue(m.resume());
+		assertEquals("one", m.get("alpha"));
+		assertEquals("2", m.get("beta"));
+	}
+	
+	// test building a read only table from a known key set
+	@Test
+	public void testImmutableTable() {
+		
+		// build table
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		String[] ref_values = new String[] {"the","long","brown","fox ","jumped","over","the","tall","red","gate."};
+		ImmutableNNHashTable.Builder builder = new ImmutableNNHashTable.Builder(20).hiddenLayers(16).maxStash(2);
+		for (int i=0; i < ref_keys.length; i++) {
+			builder.put(ref_keys[i], ref_values[i]);
+		}
+		ImmutableNNHashTable h = builder.build();
+		
+		// get data
+		assertEquals(ref_keys.length, h.totalRecords());
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(ref_values[i], (String)h.get(ref_keys[i]));
+		}
+	}
+	
+	// test that records the network cannot map are served from the stash
+	@Test
+	public void testImmutableTableStash() {
+		
+		// build table with too few training steps to map every key
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog"};
+		ImmutableNNHashTable.Builder builder = new ImmutableNNHashTable.Builder(20).training(1, 0, 1.0).retries(0).maxStash(ref_keys.length);
+		for (int i=0; i < ref_keys.length; i++) {
+			builder.put(ref_keys[i], i);
+		}
+		ImmutableNNHashTable h = builder.build();
+		TableMetrics metrics = h.enableMetrics();
+		
+		// get data
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(i, (int)h.get(ref_keys[i]));
+		}
+		
+		// lookups answered by the stash are counted
+		try {
+			h.get("missing");
+			fail("Expected missing key to throw");
+		} catch (ArrayIndexOutOfBoundsException e) {}
+		assertEquals(ref_keys.length + 1, metrics.getGetCount());
+		assertEquals(h.stashedRecords(), metrics.getStashHits());
+		assertEquals(1, metrics.getMisses());
+		
+		// invalid builder parameters
+		try {
+			builder.retries(-1);
+			fail("Negative retries were accepted");
+		} catch (IllegalArgumentException e) {}
+		try {
+			builder.maxStash(-1);
+			fail("Negative stash size was accepted");
+		} catch (IllegalArgumentException e) {}
+	}
+	
+	// test lookups that report absent keys without throwing
+	@Test
+	public void testLookupWithoutExceptions() {
+		
+		// check empty table
+		NNHashTable h = new NNHashTable(5, 3);
+		assertFalse(h.containsKey("a"));
+		assertEquals("none", h.getOrDefault("a", "none"));
+		
+		// insert data
+		h.put("a", 1);
+		h.put("b", null);
+		
+		// check present keys
+		assertTrue(h.containsKey("a"));
+		assertTrue(h.containsKey("b"));
+		assertEquals(1, (int)h.getOrDefault("a", -1));
+		assertEquals(1, (int)h.getOptional("a").get());
+		assertNull(h.getOrDefault("b", -1));
+		assertFalse(h.getOptional("b").isPresent());
+		
+		// check absent and invalid keys
+		assertFalse(h.containsKey("c"));
+		assertFalse(h.containsKey(null));
+		assertFalse(h.containsKey("a_key_longer_than_5"));
+		assertEquals(-1, (int)h.getOrDefault("c", -1));
+		assertFalse(h.getOptional("c").isPresent());
+		
+		// check deleted keys
+		h.delete("a");
+		assertFalse(h.containsKey("a"));
+		assertTrue(h.containsKey("b"));
+	}
+	
+	// test that cached indices are used and invalidated by updates
+	@Test
+	public void testCache() {
+		
+		// create hash table with cache
+		NNHashTable h = new NNHashTable(20, 5);
+		SlotCache cache = h.enableCache(2);
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value"};
+		for (int i=0; i < ref_keys.length; i++) {
+			h.put(ref_keys[i], i);
+		}
+		
+		// repeated gets hit the cache
+		cache.resetStatistics();
+		assertEquals(0, (int)h.get("012"));
+		assertEquals(0, (int)h.get("012"));
+		assertEquals(1, cache.hits());
+		
+		// entries are evicted beyond the cache size
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(i, (int)h.get(ref_keys[i]));
+		}
+		assertEquals(2, cache.size());
+		
+		// updates invalidate cached indices
+		h.delete("012");
+		cache.resetStatistics();
+		for (int i=1; i < ref_keys.length; i++) {
+			assertEquals(i, (int)h.get(ref_keys[i]));
+		}
+		assertEquals(0, cache.hits());
+		assertTrue(cache.hitRate() < 1.0);
+		
+		// stale entries are replaced in their ring position
+		SlotCache slots = new SlotCache(2);
+		slots.put("a", 1, 0);
+		slots.put("b", 2, 0);
+		slots.put("a", 3, 1);
+		assertEquals(2, slots.size());
+		assertEquals(3, slots.get("a", 1));
+		assertEquals(2, slots.get("b", 0));
+		slots.put("c", 4, 1);
+		assertEquals(2, slots.size());
+		assertEquals(4, slots.get("c", 1));
+		assertEquals(-1, slots.get("a", 1));
+	}
+	
+	// test batched lookups against single key lookups
+	@Test
+	public void testGetAll() {
+		
+		// create hash table
+		NNHashTable h = new NNHashTable(20, 10);
+		
+		// insert data
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		for (int i=0; i < ref_keys.length; i++) {
+			h.put(ref_keys[i], i);
+		}
+		h.put("emu", null);
+		
+		// get present, absent and invalid keys
+		String[] lookup = new String[] {"xyz", "missing", null, "012", "", "emu", "a key longer than the limit"};
+		assertArrayEquals(new Object[] {6, null, null, 0, null, null, null}, h.getAll(lookup));
+		
+		// records found in a collection of keys
+		Map<String, Object> found = h.getAll(List.of("sb7", "missing", "emu", "ABC"));
+		assertEquals(3, found.size());
+		assertEquals(9, found.get("sb7"));
+		assertTrue(found.containsKey("emu"));
+		assertNull(found.get("emu"));
+		
+		// large lookups are predicted in parallel
+		String[] many = new String[1000];
+		for (int i=0; i < many.length; i++) {
+			many[i] = ref_keys[i % ref_keys.length];
+		}
+		Object[] values = h.getAll(many);
+		for (int i=0; i < many.length; i++) {
+			assertEquals(h.getOrDefault(many[i], "absent"), values[i]);
+		}
+	}
+	
+	// test lookups through a pruned copy of the network
+	@Test
+	public void testCompress() {
+		
+		// create hash table
+		NNHashTable h = new NNHashTable(20, 10);
+		
+		// insert data
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		for (int i=0; i < ref_keys.length; i++) {
+			h.put(ref_keys[i], i);
+		}
+		
+		// compress without pruning
+		assertTrue(h.compress(0.0));
+		assertNotNull(h.compressed());
+		
+		// lookups are correct whether or not heavier pruning is verified
+		boolean compressed = h.compress(0.5);
+		assertEquals(compressed, h.compressed() != null && h.compressed().density() < 0.6);
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(i, (int)h.get(ref_keys[i]));
+		}
+		
+		// updates return to the dense network
+		h.delete("emu");
+		assertNull(h.compressed());
+		assertEquals(9, (int)h.get("sb7"));
+	}
+	
+	// test lookups that compare keys at the top scoring indices
+	@Test
+	public void testProbing() throws Exception {
+		
+		// create hash table with 3 probes
+		NNHashTable h = new NNHashTable(20, 10);
+		h.setProbes(3);
+		
+		// insert data
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		for (int i=0; i < ref_keys.length; i++) {
+			h.put(ref_keys[i], i);
+		}
+		
+		// get data
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(i, (int)h.get(ref_keys[i]));
+		}
+		assertFalse(h.containsKey("missing"));
+		
+		// delete record
+		h.delete("emu");
+		assertFalse(h.containsKey("emu"));
+		assertEquals(9, (int)h.get("sb7"));
+		
+		// probes are kept in snapshots
+		Path file = folder.getRoot().toPath().resolve("probing.snapshot");
+		h.save(file);
+		NNHashTable loaded = NNHashTable.load(file);
+		assertEquals(3, loaded.probes());
+		assertEquals(9, (int)loaded.get("sb7"));
+		
+		// fewer probes only apply to lookups once the network is trained for them
+		loaded.setProbes(1);
+		assertEquals(3, loaded.probes());
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(i != 5, loaded.containsKey(ref_keys[i]));
+		}
+		loaded.setProbes(4);
+		assertEquals(4, loaded.probes());
+	}
+	
+	// test replicas following the changes and networks of a primary
+	@Test
+	public void testReplication() throws Exception {
+		
+		// create primary, seeded since every change must converge
+		NNHashTable h = new NNHashTable(20, 10, 10_000, 0, 1.0, new SplittableRandom(11L));
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		try (ReplicationPrimary primary = new ReplicationPrimary(h, 0)) {
+			for (int i=0; i < 5; i++) {
+				primary.put(ref_keys[i], i);
+			}
+			
+			// replica starts from a snapshot
+			try (Replica replica = new Replica(primary.address())) {
+				assertEquals(primary.generation(), replica.generation());
+				assertEquals(4, (int)replica.get("gddog"));
+				
+				// replica follows inserts, overwrites and deletes
+				for (int i=5; i < ref_keys.length; i++) {
+					primary.put(ref_keys[i], i);
+				}
+				primary.put("012", "zero");
+				primary.delete("emu");
+				assertTrue(replica.awaitGeneration(primary.generation(), 10, TimeUnit.SECONDS));
+				assertEquals(9, replica.totalRecords());
+				assertEquals("zero", replica.get("012"));
+				assertEquals(9, (int)replica.get("sb7"));
+				assertFalse(replica.containsKey("emu"));
+				
+				// late replicas start from the latest state
+				try (Replica late = new Replica(primary.address())) {
+					assertEquals(primary.generation(), late.generation());
+					assertEquals(8, (int)late.get("4fw"));
+					assertFalse(late.containsKey("emu"));
+				}
+				
+				// changes left pending are held back from replicas until resume
+				h.setTrainingLimit(1, TimeUnit.NANOSECONDS);
+				long generation = replica.generation();
+				primary.put("kiwi", 10);
+				assertTrue(primary.pending());
+				assertEquals(generation, replica.generation());
+				assertFalse(replica.containsKey("kiwi"));
+				h.setTrainingLimit(0, TimeUnit.NANOSECONDS);
+				assertTrue(primary.resume());
+				assertTrue(replica.awaitGeneration(primary.generation(), 10, TimeUnit.SECONDS));
+				assertEquals(10, replica.totalRecords());
+				assertEquals(10, (int)replica.get("kiwi"));
+				for (int i=1; i < ref_keys.length; i++) {
+					assertEquals(i != 5, replica.containsKey(ref_keys[i]));
+				}
+				
+				// replicas probe as many outputs as the network was trained for
+				h.setProbes(2);
+				primary.delete("kiwi");
+				assertTrue(replica.awaitGeneration(primary.generation(), 10, TimeUnit.SECONDS));
+				assertEquals(2, replica.probes());
+				for (int i=1; i < ref_keys.length; i++) {
+					assertEquals(i != 5, replica.containsKey(ref_keys[i]));
+				}
+			}
+		}
+	}
+	
+	// test updates that run out of their training budget
+	@Test
+	public void testTrainingBudget() {
+		
+		// create hash table, seeded since half the keys are fitted at once on resume
+		NNHashTable h = new NNHashTable(20, 10, 10_000, 0, 1.0, new SplittableRandom(11L));
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		for (int i=0; i < 5; i++) {
+			h.put(ref_keys[i], i);
+		}
+		
+		// inserts past the limit are kept and found by linear search
+		h.setTrainingLimit(1, TimeUnit.NANOSECONDS);
+		for (int i=5; i < ref_keys.length; i++) {
+			h.put(ref_keys[i], i);
+		}
+		assertTrue(h.pending());
+		assertFalse(h.compress(0.0));
+		assertFalse(h.containsKey("missing"));
+		assertArrayEquals(new Object[] {9, null, 0}, h.getAll(new String[] {"sb7", "missing", "012"}));
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(i, (int)h.get(ref_keys[i]));
+		}
+		
+		// resume without a limit
+		h.setTrainingLimit(0, TimeUnit.NANOSECONDS);
+		assertTrue(h.resume());
+		assertFalse(h.pending());
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(i, (int)h.get(ref_keys[i]));
+		}
+		
+		// rolled back deletes keep the records and network
+		h.setTrainingLimit(1, TimeUnit.NANOSECONDS);
+		h.setBudgetPolicy(NNHashTable.BudgetPolicy.ROLLBACK);
+		assertThrows(CancellationException.class, () -> h.delete("emu"));
+		assertFalse(h.pending());
+		assertEquals(10, h.totalRecords());
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(i, (int)h.get(ref_keys[i]));
+		}
+	}
+	
+	// test choosing a configuration for a sample of keys and reusing it
+	@Test
+	public void testTuner() throws Exception {
+		
+		// tune on a sample of keys
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		TableProfile profile = new TableTuner(ref_keys, 20, 10)
+				.hiddenLayers(new int[0], new int[] {16})
+				.learningRates(1.0, 2.0)
+				.probes(1)
+				.putBudget(1, TimeUnit.SECONDS)
+				.tune();
+		assertEquals(TableProfile.parameters(20, profile.hiddenLayers(), 10), profile.parameters);
+		assertTrue(profile.putNanos > 0);
+		
+		// saved profiles build the same configuration
+		Path file = folder.getRoot().toPath().resolve("table.profile");
+		profile.save(file);
+		TableProfile loaded = TableProfile.load(file);
+		assertArrayEquals(profile.hiddenLayers(), loaded.hiddenLayers());
+		assertEquals(profile.eta, loaded.eta, 0.0);
+		assertEquals(profile.probes, loaded.probes);
+		
+		// built tables map the sample
+		NNHashTable h = loaded.build(new SplittableRandom(42L));
+		for (int i=0; i < ref_keys.length; i++) {
+			h.put(ref_keys[i], i);
+		}
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(i, (int)h.get(ref_keys[i]));
+		}
+	}
+	
+	// test lookups served from a mapped snapshot and publishing new generations
+	@Test
+	public void testSharedTable() throws Exception {
+		
+		// create hash table
+		NNHashTable h = new NNHashTable(20, 10);
+		h.setProbes(2);
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		for (int i=0; i < ref_keys.length; i++) {
+			h.put(ref_keys[i], i);
+		}
+		
+		// publish and map
+		Path file = folder.getRoot().toPath().resolve("shared.snapshot");
+		SharedNNHashTable.publish(h, file);
+		SharedNNHashTable shared = SharedNNHashTable.open(file);
+		assertEquals(10, shared.totalRecords());
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(i, (int)shared.get(ref_keys[i]));
+		}
+		assertFalse(shared.containsKey("missing"));
+		assertEquals(-1, shared.getOrDefault("a key longer than the limit", -1));
+		assertFalse(shared.refresh());
+		
+		// readers map the next generation on refresh
+		h.delete("emu");
+		h.put("012", "zero");
+		SharedNNHashTable.publish(h, file);
+		assertTrue(shared.refresh());
+		assertEquals(1, shared.generation());
+		assertFalse(shared.containsKey("emu"));
+		assertEquals("zero", shared.get("012"));
+		assertEquals(9, (int)shared.get("sb7"));
+	}
+	
+	// test tenants with their own heads over a shared trunk
+	@Test
+	public void testMultiTenant() {
+		
+		// create container with a 32 unit trunk
+		MultiTenantNNHashTable h = new MultiTenantNNHashTable(20, 32, 10, 10_000, 0, 1.0, new SplittableRandom(42L));
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		
+		// insert the same keys with different values per tenant
+		for (int i=0; i < ref_keys.length; i++) {
+			h.put("even", ref_keys[i], 2*i);
+			if (i % 3 == 0) h.put("odd", ref_keys[i], 2*i+1);
+		}
+		assertEquals(2, h.tenants());
+		assertEquals(10, h.totalRecords("even"));
+		assertEquals(4, h.totalRecords("odd"));
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(2*i, (int)h.get("even", ref_keys[i]));
+			assertEquals(i % 3 == 0, h.containsKey("odd", ref_keys[i]));
+		}
+		assertFalse(h.containsKey("none", "012"));
+		
+		// delete and refresh the trunk on the keys of both tenants
+		h.delete("even", "emu");
+		h.refreshTrunk();
+		assertFalse(h.containsKey("even", "emu"));
+		assertEquals(18, (int)h.get("even", "sb7"));
+		assertEquals(19, (int)h.get("odd", "sb7"));
+		
+		// one trunk and a head per tenant
+		assertEquals(20*32+32 + 2*(32*10+10), h.parameters());
+		
+		// changes that do not converge are kept and thrown to the caller
+		MultiTenantNNHashTable u = new MultiTenantNNHashTable(20, 32, 10, 1, 0, 1.0, new SplittableRandom(42L));
+		for (int i=0; i < 4; i++) {
+			try {
+				u.put("even", ref_keys[i], i);
+			} catch (IllegalStateException e) {}
+		}
+		assertEquals(4, u.totalRecords("even"));
+		try {
+			u.refreshTrunk();
+			fail("Refresh converged in a single step");
+		} catch (IllegalStateException e) {}
+		assertEquals(4, u.totalRecords("even"));
+	}
+	
+	// test iteration over the records
+	@Test
+	public void testIteration() {
+		
+		// create table and insert records
+		NNHashTable h = new NNHashTable(20, 10, 10_000, 0, 1.0, new SplittableRandom(11L));
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd"};
+		for (int i=0; i < ref_keys.length; i++) {
+			h.put(ref_keys[i], i);
+		}
+		
+		// keys and entries in index order
+		assertArrayEquals(ref_keys, h.keys().toArray(String[]::new));
+		Map<String, Object> entries = h.entries().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+		for (int i=0; i < ref_keys.length; i++) {
+			assertEquals(i, entries.get(ref_keys[i]));
+		}
+		Map<String, Object> visited = new HashMap<>();
+		h.forEach(visited::put);
+		assertEquals(entries, visited);
+		
+		// parallel streams split the records evenly
+		Spliterator<String> suffix = h.keys().spliterator();
+		Spliterator<String> prefix = suffix.trySplit();
+		assertEquals(4, prefix.estimateSize());
+		assertEquals(4, suffix.estimateSize());
+		assertEquals(28, h.entries().parallel().mapToInt(e -> (int)e.getValue()).sum());
+		
+		// overwritten values are seen, deletions during iteration are not
+		h.put("emu", 50);
+		assertEquals(73, h.entries().mapToInt(e -> (int)e.getValue()).sum());
+		try {
+			h.forEach((key, value) -> { if (key.equals("ABC")) h.delete("xyz"); });
+			fail("Deletion during iteration was not detected");
+		} catch (ConcurrentModificationException e) {}
+		assertEquals(7, h.keys().count());
+	}
 }
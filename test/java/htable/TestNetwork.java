@@ -2,12 +2,17 @@ package htable;
 
 import static org.junit.Assert.*;
 
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator.SplittableGenerator;
+import java.util.stream.IntStream;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import htable.network.DenseNetwork;
 import htable.network.Encoding;
 import htable.network.Metrics;
+import htable.network.SparseNetwork;
 import htable.util.Matrix;
 
 public class TestNetwork {
@@ -88,4 +93,159 @@ public class TestNetwork {
 			assertEquals(1, Metrics.classificationAccuracy(network.predict(target_x[i]), target_y[i]));
 		}
 	}
+	
+	// test that networks with their own generators are reproducible
+	// when they are initialised in parallel
+	@Test
+	public void parallelInitTest() {
+		
+		// input shared by all networks
+		Matrix x = Encoding.stringNorm("key", 8, 0, 128);
+		
+		// initialise networks serially and in parallel from the same seed
+		SplittableGenerator[] serialStreams = Matrix.randomStreams(42L, 8);
+		SplittableGenerator[] parallelStreams = Matrix.randomStreams(42L, 8);
+		DenseNetwork[] serial = new DenseNetwork[8];
+		DenseNetwork[] parallel = new DenseNetwork[8];
+		for (int i=0; i < 8; i++) {
+			serial[i] = new DenseNetwork(serialStreams[i], 8, 4, 10);
+		}
+		IntStream.range(0, 8).parallel().forEach(i -> parallel[i] = new DenseNetwork(parallelStreams[i], 8, 4, 10));
+		
+		// assess predictions are identical
+		for (int i=0; i < 8; i++) {
+			Matrix expected = serial[i].predict(x);
+			Matrix actual = parallel[i].predict(x);
+			for (int j=0; j < expected.height; j++) {
+				assertEquals(expected.get(j, 0), actual.get(j, 0), 0.0);
+			}
+		}
+		
+		// assess that streams are independent
+		assertNotEquals(serial[0].predict(x).get(0, 0), serial[1].predict(x).get(0, 0), 0.0);
+		
+		// assess that a seeded generator is reproducible
+		DenseNetwork a = new DenseNetwork(new SplittableRandom(7L), 8, 10);
+		DenseNetwork b = new DenseNetwork(new SplittableRandom(7L), 8, 10);
+		assertEquals(a.predict(x).get(3, 0), b.predict(x).get(3, 0), 0.0);
+	}
+	
+	// test partial selection of the largest values and the top k accuracy metric
+	@Test
+	public void topKTest() {
+		Matrix prediction = Matrix.column(0.1, 0.7, 0.3, 0.9, 0.5);
+		assertArrayEquals(new int[] {3, 1, 4}, prediction.topK(3));
+		assertArrayEquals(new int[] {3, 1, 4, 2, 0}, prediction.topK(10));
+		
+		assertEquals(1, Metrics.topKAccuracy(prediction, Encoding.oneHot(4, 5), 3));
+		assertEquals(0, Metrics.topKAccuracy(prediction, Encoding.oneHot(2, 5), 3));
+	}
+	
+	// test that a pruned network ranks outputs like the dense network it was pruned from
+	@Test
+	public void pruneTest() {
+		DenseNetwork network = new DenseNetwork(new SplittableRandom(5L), 16, 8, 10);
+		Matrix x = Encoding.stringNorm("key", 16, 0, 128);
+		
+		// nothing pruned
+		SparseNetwork full = SparseNetwork.prune(network, 0.0);
+		assertEquals(16*8 + 8*10, full.nonZeros());
+		assertArrayEquals(network.predict(x).topK(10), full.predict(x, 3).topK(10));
+		
+		// half of the weights pruned
+		SparseNetwork half = SparseNetwork.prune(network, 0.5);
+		assertEquals(0.5, half.density(), 0.01);
+		assertEquals(10, half.predict(x, 3).height);
+	}
+	
+	// test that the first layer over the active columns matches the full product
+	@Test
+	public void sparseInputTest() {
+		SplittableRandom rng = new SplittableRandom(3L);
+		Matrix w = Matrix.random(6, 16, rng);
+		Matrix x = Encoding.stringNorm("abc", 16, 0, 128);
+		assertEquals(3, Encoding.activeLength(x));
+		
+		// forward kernel
+		Matrix full = Matrix.dot(w, x);
+		Matrix sparse = Matrix.dot(w, x, Encoding.activeLength(x));
+		for (int i=0; i < full.height; i++) {
+			assertEquals(full.get(i, 0), sparse.get(i, 0), 1e-12);
+		}
+		
+		// gradient kernel
+		Matrix delta = Matrix.random(6, 1, rng);
+		Matrix expected = Matrix.constant(6, 16, 0.0);
+		Matrix actual = Matrix.constant(6, 16, 0.0);
+		expected.sum(Matrix.dot(delta, x.transpose()));
+		actual.sumOuter(delta, x, Encoding.activeLength(x));
+		for (int i=0; i < expected.height; i++) {
+			for (int j=0; j < expected.width; j++) {
+				assertEquals(expected.get(i, j), actual.get(i, j), 1e-12);
+			}
+		}
+	}
+	
+	// test training that concentrates on records with a low margin
+	@Test
+	public void hardExampleTest() {
+		
+		// margin of the label over the k-th highest other output
+		Matrix prediction = Matrix.column(0.1, 0.7, 0.3, 0.9, 0.5);
+		assertEquals(0.2, Metrics.margin(prediction, Encoding.oneHot(3, 5), 1), 1e-12);
+		assertEquals(-0.2, Metrics.margin(prediction, Encoding.oneHot(1, 5), 1), 1e-12);
+		assertEquals(0.2, Metrics.margin(prediction, Encoding.oneHot(4, 5), 3), 1e-12);
+		
+		// keys
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog","emu","xyz","asd","4fw","sb7"};
+		Matrix[] target_x = new Matrix[ref_keys.length];
+		Matrix[] target_y = new Matrix[ref_keys.length];
+		for (int i=0; i < ref_keys.length; i++) {
+			target_x[i] = Encoding.stringNorm(ref_keys[i], 18, 48, 122);
+			target_y[i] = Encoding.oneHot(i,ref_keys.length);
+		}
+		
+		// learn mapping with full steps every 10 steps
+		DenseNetwork network = new DenseNetwork(new SplittableRandom(9L), 18,20,10);
+		network.setHardExampleMining(0.1, 10);
+		network.fit(target_x, target_y, 1.0, 10_000, 0, 1.0);
+		
+		// assess predictions
+		for (int i=0; i < target_x.length; i++) {
+			assertEquals(1, Metrics.classificationAccuracy(network.predict(target_x[i]), target_y[i]));
+		}
+	}
+	
+	// test that the label kernels match the kernels of the one hot target
+	@Test
+	public void labelTest() {
+		Matrix prediction = Matrix.column(0.1, 0.7, 0.3, 0.9, 0.5);
+		Matrix target = Encoding.oneHot(2, 5);
+		
+		assertEquals(Metrics.crossEntropy(prediction, target), Metrics.crossEntropy(prediction, 2), 1e-12);
+		Matrix expected = Metrics.crossEntropyDerivative(prediction, target);
+		Matrix actual = Metrics.crossEntropyDerivative(prediction, 2);
+		for (int i=0; i < expected.height; i++) {
+			assertEquals(expected.get(i, 0), actual.get(i, 0), 1e-12);
+		}
+		assertEquals(0, Metrics.classificationAccuracy(prediction, 2));
+		assertEquals(1, Metrics.classificationAccuracy(prediction, 3));
+		assertEquals(1, Metrics.topKAccuracy(prediction, 4, 3));
+		assertEquals(Metrics.margin(prediction, target, 2), Metrics.margin(prediction, 2, 2), 0.0);
+		
+		// networks from the same initialisation train identically on either target
+		String[] ref_keys = new String[] {"012","ABC","XwdYZ","a longer key value","gddog"};
+		Matrix[] target_x = new Matrix[ref_keys.length];
+		Matrix[] target_y = new Matrix[ref_keys.length];
+		int[] target_labels = new int[ref_keys.length];
+		for (int i=0; i < ref_keys.length; i++) {
+			target_x[i] = Encoding.stringNorm(ref_keys[i], 18, 48, 122);
+			target_y[i] = Encoding.oneHot(i, ref_keys.length);
+			target_labels[i] = i;
+		}
+		DenseNetwork a = new DenseNetwork(new SplittableRandom(4L), 18, ref_keys.length);
+		DenseNetwork b = new DenseNetwork(new SplittableRandom(4L), 18, ref_keys.length);
+		assertEquals(a.fit(target_x, target_y, 1.0, 10_000, 0, 1.0, 1, null), b.fit(target_x, target_labels, 1.0, 10_000, 0, 1.0, 1, null));
+		assertEquals(a.weights(0).get(2, 3), b.weights(0).get(2, 3), 1e-9);
+	}
 }